@@ -0,0 +1,29 @@
+import iteratee.JIteratees.Admission;
+import play.Application;
+import play.GlobalSettings;
+
+public class Global extends GlobalSettings {
+
+    /**
+     * Caps open streams to {@code admission.connections} and their buffers to
+     * {@code admission.bytes}, and holds the cluster port while running.
+     */
+    @Override
+    public void onStart(Application app) {
+        Integer connections = app.configuration().getInt("admission.connections");
+        Long bytes = app.configuration().getBytes("admission.bytes");
+        Admission.instance()
+                .limit(connections == null ? Long.MAX_VALUE : connections)
+                .budget(bytes == null ? Long.MAX_VALUE : bytes);
+        if (controllers.Application.cluster != null) {
+            controllers.Application.cluster.start();
+        }
+    }
+
+    @Override
+    public void onStop(Application app) {
+        if (controllers.Application.cluster != null) {
+            controllers.Application.cluster.stop();
+        }
+    }
+}
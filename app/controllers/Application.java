@@ -1,6 +1,9 @@
 package controllers;
 
+import iteratee.Cluster;
 import iteratee.JIteratees;
+import play.Play;
+import play.libs.Json;
 import play.mvc.*;
 
 import iteratee.F;
@@ -8,6 +11,7 @@ import static iteratee.F.*;
 import static iteratee.Iteratees.*;
 
 import java.io.File;
+import java.net.InetSocketAddress;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -15,54 +19,72 @@ public class Application extends Controller {
 
     public static final AtomicInteger integer = new AtomicInteger(0);
 
-    public static final PushEnumerator<String> enumerator = Enumerator.unicast( String.class );
-    public static final HubEnumerator<String> hub = Enumerator.broadcast( enumerator );
+    public static final PushEnumerator<String> enumerator = Enumerator.unicast( String.class, 4096 );
+    /** Set when {@code cluster.port} is configured. Global starts and stops it. */
+    public static final Cluster<String> cluster = cluster();
+    public static final HubEnumerator<String> hub = cluster == null
+            ? Enumerator.broadcast( enumerator, Replay.last( 10 ) )
+            : Enumerator.broadcast( enumerator, Replay.last( 10 ), cluster );
+
+    /** Listens on {@code cluster.host}, loopback by default, for the nodes in {@code cluster.peers}. */
+    private static Cluster<String> cluster() {
+        Integer port = Play.application().configuration().getInt( "cluster.port" );
+        if (port == null) {
+            return null;
+        }
+        String host = Play.application().configuration().getString( "cluster.host" );
+        String peers = Play.application().configuration().getString( "cluster.peers" );
+        InetSocketAddress address = new InetSocketAddress( host == null ? "127.0.0.1" : host, port );
+        return new Cluster<String>( address, Cluster.peers( peers ), Cluster.STRINGS );
+    }
+
+    /** Shared by every request, so that all the generated streams are driven by one timer tick. */
+    private static final F.Function<F.Unit, F.Option<String>> clock = new F.Function<F.Unit, F.Option<String>>() {
+        @Override
+        public F.Option<String> apply(F.Unit unit) {
+            return Option.some( System.currentTimeMillis() + "" );
+        }
+    };
+
+    private static final F.Function<F.Unit, F.Option<String>> clockLines = new F.Function<F.Unit, F.Option<String>>() {
+        @Override
+        public F.Option<String> apply(F.Unit unit) {
+            return Option.some( System.currentTimeMillis() + "\n" );
+        }
+    };
 
     public static Result index() {
         return ok(views.html.index.render(""));
     }
 
     public static Result push() {
-        enumerator.push( integer.incrementAndGet() + "" );
+        if (!enumerator.offer( integer.incrementAndGet() + "" )) {
+            return status( SERVICE_UNAVAILABLE, "Too many pending events, retry later" );
+        }
         return ok();
     }
   
     public static Result comet() {
-        return JIteratees.comet( "parent.cometMessage", Enumerator.generate( 1, TimeUnit.SECONDS, new F.Function<F.Unit, F.Option<String>>() {
-            @Override
-            public F.Option<String> apply(F.Unit unit) {
-                return Option.some( System.currentTimeMillis() + "" );
-            }
-        }));
+        return JIteratees.comet( "parent.cometMessage", Enumerator.generate( 1, TimeUnit.SECONDS, clock ) );
     }
 
     public static Result ssePushed() {
-        return JIteratees.eventSource( hub );
+        return JIteratees.eventSource( hub, Overflow.dropOldest( 100 ) );
     }
 
     public static Result sse() {
-        return JIteratees.eventSource( Enumerator.generate( 1, TimeUnit.SECONDS, new F.Function<F.Unit, F.Option<String>>() {
-            @Override
-            public F.Option<String> apply(F.Unit unit) {
-                return Option.some( System.currentTimeMillis() + "" );
-            }
-        }));
+        return JIteratees.eventSource( Enumerator.generate( 1, TimeUnit.SECONDS, clock ) );
     }
 
     public static Result stream() {
-        return JIteratees.stream( Enumerator.generate( 1, TimeUnit.SECONDS, new F.Function<F.Unit, F.Option<String>>() {
-            @Override
-            public F.Option<String> apply(F.Unit unit) {
-                return Option.some( System.currentTimeMillis() + "\n" );
-            }
-        }));
+        return JIteratees.stream( Enumerator.generate( 1, TimeUnit.SECONDS, clockLines ) );
     }
 
     public static WebSocket<String> websocket() {
         final PushEnumerator<String> out = Enumerator.unicast( String.class );
-        final Iteratee<String, Unit> in = Iteratee.foreach( new UFunction<String>() {
-            public void invoke(String s) {
-                out.push("Received : " + s);
+        final Iteratee<String, Unit> in = Iteratee.foreachAsync( new Function<String, Promise<Unit>>() {
+            public Promise<Unit> apply(String s) {
+                return out.push("Received : " + s);
             }
         });
         return JIteratees.websocket( String.class, in, out );
@@ -71,4 +93,8 @@ public class Application extends Controller {
     public static Result file() {
         return JIteratees.file( Enumerator.fromFile( new File("/tmp/stuff") ) );
     }
+
+    public static Result admission() {
+        return ok( Json.toJson( JIteratees.Admission.instance().counters() ) );
+    }
 }
\ No newline at end of file
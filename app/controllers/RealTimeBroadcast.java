@@ -17,58 +17,46 @@ public class RealTimeBroadcast extends Controller {
         return ok(views.html.realtime.render(role));
     }
 
-    public static final HubEnumerator<Event> hub = Enumerator.broadcast( Streams.events );
-
-    public static Result feed(final String role, final int lowerBound, final int higherBound) {
-        Enumeratee<Event, Event> secure = Enumeratee.collect( new Function<Event, Option<Event>>() {
-            @Override
-            public Option<Event> apply(Event o) {
-                for (SystemStatus status : caseClassOf(SystemStatus.class, o)) {
-                    if (role.equals("MANAGER")) {
-                        return Option.<Event>some(status);
-                    }
-                }
-                for (Operation operation : caseClassOf(Operation.class, o)) {
-                    if (operation.level.equals("public")) {
-                        return Option.<Event>some(operation);
-                    } else {
-                        if (role.equals("MANAGER")) {
-                            return Option.<Event>some(operation);
-                        }
-                    }
-                }
-                return Option.none();
+    public static final Function<Event, String> visibility = new Function<Event, String>() {
+        @Override
+        public String apply(Event o) {
+            for (Operation operation : caseClassOf(Operation.class, o)) {
+                return operation.level;
             }
-        });
-
-        Enumeratee<Event, Event> inBounds = Enumeratee.collect( new Function<Event, Option<Event>>() {
-            @Override
-            public Option<Event> apply(Event o) {
-                for (SystemStatus status : caseClassOf(SystemStatus.class, o)) {
-                    return Option.<Event>some(status);
-                }
-                for (Operation operation : caseClassOf(Operation.class ,o)) {
-                    if (operation.amount > lowerBound && operation.amount < higherBound) {
-                        return Option.<Event>some(operation);
-                    }
-                }
-                return Option.none();
+            return "status";
+        }
+    };
+
+    public static final Function<Event, Option<Double>> amount = new Function<Event, Option<Double>>() {
+        @Override
+        public Option<Double> apply(Event o) {
+            for (Operation operation : caseClassOf(Operation.class, o)) {
+                return Option.some(operation.amount.doubleValue());
             }
-        });
-
-        Enumeratee<Event, String> asJson = Enumeratee.map( new Function<Event, String>() {
-            @Override
-            public String apply(Event o) {
-                for (SystemStatus status : caseClassOf(SystemStatus.class, o)) {
-                    return "{\"type\":\"status\", \"message\":\"" + status.message + "\"}";
-                }
-                for (Operation operation : caseClassOf(Operation.class ,o)) {
-                    return "{\"type\":\"operation\", \"amount\":" + operation.amount + ", \"visibility\":\"" + operation.level + "\"}";
-                }
-                return "";
+            return Option.none();
+        }
+    };
+
+    public static final Function<Event, String> asJson = new Function<Event, String>() {
+        @Override
+        public String apply(Event o) {
+            for (SystemStatus status : caseClassOf(SystemStatus.class, o)) {
+                return "{\"type\":\"status\", \"message\":\"" + status.message + "\"}";
             }
-        });
+            for (Operation operation : caseClassOf(Operation.class ,o)) {
+                return "{\"type\":\"operation\", \"amount\":" + operation.amount + ", \"visibility\":\"" + operation.level + "\"}";
+            }
+            return "";
+        }
+    };
+
+    public static final IndexedHubEnumerator<Event, String> hub = new IndexedHubEnumerator<Event, String>( Streams.events, visibility, amount );
 
-        return JIteratees.eventSource( Enumerator.feed(Event.class, hub).through( secure, inBounds ).through( asJson ) );
+    public static Result feed(final String role, final int lowerBound, final int higherBound) {
+        if (lowerBound >= higherBound) {
+            return badRequest("Empty range");
+        }
+        Criteria<String> criteria = role.equals("MANAGER") ? Criteria.keys("status", "public", "private") : Criteria.keys("public");
+        return JIteratees.eventSource( hub.subscribe( criteria.between( lowerBound, higherBound ), asJson ) );
     }
 }
\ No newline at end of file
@@ -0,0 +1,398 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package iteratee;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static iteratee.Iteratees.*;
+
+/**
+ * Links the hubs of several nodes over plain TCP, so that an element published on
+ * one node reaches the subscribers of all of them.
+ * <p>
+ * Elements are sent in deflated batches, once per peer, and never forwarded. They
+ * are dropped and counted when a peer or the local hub can't keep up. The node
+ * only binds its address and accepts its peers between {@link #start()} and {@link
+ * #stop()}.
+ */
+public class Cluster<T> {
+
+    public static final int DEFAULT_QUEUE = 10000;
+    public static final int MAX_BATCH = 512;
+    static final int MAGIC = 0x49544552;
+    private static final int MAX_FRAME = 16 * 1024 * 1024;
+    private static final int MAX_INFLATED = 64 * 1024 * 1024;
+
+    /** How elements are written in a frame, and read back on the other side. */
+    public static interface Codec<T> {
+        void write(T value, DataOutput out) throws IOException;
+        T read(DataInput in) throws IOException;
+    }
+
+    public static final Codec<String> STRINGS = new Codec<String>() {
+        @Override
+        public void write(String value, DataOutput out) throws IOException {
+            byte[] bytes = value.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        @Override
+        public String read(DataInput in) throws IOException {
+            return new String(readBytes(in, in.readInt()), "UTF-8");
+        }
+    };
+
+    /**
+     * Reads {@code length} bytes for a codec. The array grows as they arrive, so
+     * that a lying length runs into the end of the frame before it allocates.
+     */
+    public static byte[] readBytes(DataInput in, int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME) {
+            throw new IOException("Invalid length " + length);
+        }
+        byte[] bytes = new byte[Math.min(length, 8192)];
+        int read = 0;
+        while (true) {
+            in.readFully(bytes, read, bytes.length - read);
+            read = bytes.length;
+            if (read == length) {
+                return bytes;
+            }
+            bytes = Arrays.copyOf(bytes, Math.min(length, read * 2));
+        }
+    }
+
+    private final Codec<T> codec;
+    private final InetSocketAddress address;
+    private final Set<InetAddress> allowed = new HashSet<InetAddress>();
+    private volatile ServerSocket server;
+    private final List<Link> links = new ArrayList<Link>();
+    private final List<Socket> accepted = new CopyOnWriteArrayList<Socket>();
+    private final List<PushEnumerator<T>> targets = new CopyOnWriteArrayList<PushEnumerator<T>>();
+    private final AtomicLong sent = new AtomicLong(0L);
+    private final AtomicLong received = new AtomicLong(0L);
+    private final AtomicLong batches = new AtomicLong(0L);
+    private final AtomicLong bytes = new AtomicLong(0L);
+    private final AtomicLong dropped = new AtomicLong(0L);
+    private final AtomicLong undelivered = new AtomicLong(0L);
+    private volatile boolean running = false;
+
+    public Cluster(InetSocketAddress address, List<InetSocketAddress> peers, Codec<T> codec) {
+        this(address, peers, codec, DEFAULT_QUEUE);
+    }
+
+    public Cluster(InetSocketAddress address, List<InetSocketAddress> peers, Codec<T> codec, int queue) {
+        this.codec = codec;
+        this.address = address;
+        for (InetSocketAddress peer : peers) {
+            allowed.add(peer.getAddress());
+            links.add(new Link(peer, queue));
+        }
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        try {
+            server = new ServerSocket();
+            server.setReuseAddress(true);
+            server.bind(address);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        running = true;
+        daemon("cluster-accept-" + address, new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+        for (Link link : links) {
+            daemon("cluster-link-" + link.peer, link);
+        }
+    }
+
+    /** Parses a comma separated list of {@code host:port}. */
+    public static List<InetSocketAddress> peers(String peers) {
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        if (peers != null) {
+            for (String peer : peers.split(",")) {
+                String trimmed = peer.trim();
+                if (trimmed.length() > 0) {
+                    int colon = trimmed.lastIndexOf(':');
+                    addresses.add(new InetSocketAddress(trimmed.substring(0, colon), Integer.parseInt(trimmed.substring(colon + 1))));
+                }
+            }
+        }
+        return addresses;
+    }
+
+    public void publish(T value) {
+        for (Link link : links) {
+            if (!link.queue.offer(value)) {
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    void deliverTo(PushEnumerator<T> target) {
+        targets.add(target);
+    }
+
+    void undelivered() {
+        undelivered.incrementAndGet();
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        close(server);
+        for (Socket socket : accepted) {
+            close(socket);
+        }
+        for (Link link : links) {
+            close(link.socket);
+        }
+    }
+
+    public Map<String, Long> counters() {
+        Map<String, Long> counters = new LinkedHashMap<String, Long>();
+        counters.put("peers", (long) links.size());
+        counters.put("sent", sent.get());
+        counters.put("received", received.get());
+        counters.put("batches", batches.get());
+        counters.put("bytes", bytes.get());
+        counters.put("dropped", dropped.get());
+        counters.put("undelivered", undelivered.get());
+        return counters;
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                final Socket socket = server.accept();
+                if (!allowed.contains(socket.getInetAddress())) {
+                    close(socket);
+                    continue;
+                }
+                socket.setTcpNoDelay(true);
+                accepted.add(socket);
+                daemon("cluster-read-" + socket.getRemoteSocketAddress(), new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            read(new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+                        } catch (EOFException e) {
+                            // peer went away
+                        } catch (SocketException e) {
+                            // peer went away
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        } finally {
+                            accepted.remove(socket);
+                            close(socket);
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a cluster peer");
+        }
+        Inflater inflater = new Inflater();
+        try {
+            while (running) {
+                int length = in.readInt();
+                if (length < 0 || length > MAX_FRAME) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                inflater.reset();
+                DataInputStream batch = new DataInputStream(new Bounded(new InflaterInputStream(new ByteArrayInputStream(frame), inflater)));
+                int count = batch.readInt();
+                if (count < 0) {
+                    throw new IOException("Invalid element count " + count);
+                }
+                for (int i = 0; i < count; i++) {
+                    T value = codec.read(batch);
+                    received.incrementAndGet();
+                    for (PushEnumerator<T> target : targets) {
+                        if (!target.offer(value)) {
+                            undelivered.incrementAndGet();
+                        }
+                    }
+                }
+            }
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /** Fails a frame inflating past {@code MAX_INFLATED}. */
+    private static final class Bounded extends FilterInputStream {
+        private long left = MAX_INFLATED;
+        Bounded(InputStream in) {
+            super(in);
+        }
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                consumed(1L);
+            }
+            return b;
+        }
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                consumed(n);
+            }
+            return n;
+        }
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            consumed(skipped);
+            return skipped;
+        }
+        private void consumed(long n) throws IOException {
+            left -= n;
+            if (left < 0L) {
+                throw new IOException("Frame inflates past " + MAX_INFLATED + " bytes");
+            }
+        }
+    }
+
+    /** The connection to one peer, and what is waiting to be sent to it. */
+    private class Link implements Runnable {
+        private final InetSocketAddress peer;
+        private final BlockingQueue<T> queue;
+        private final List<T> batch = new ArrayList<T>(MAX_BATCH);
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private volatile Socket socket;
+        Link(InetSocketAddress peer, int queue) {
+            this.peer = peer;
+            this.queue = new ArrayBlockingQueue<T>(queue);
+        }
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    socket = new Socket(peer.getAddress(), peer.getPort());
+                    socket.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    out.writeInt(MAGIC);
+                    out.flush();
+                    write(out);
+                } catch (IOException e) {
+                    dropped.addAndGet(batch.size());
+                    batch.clear();
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    close(socket);
+                }
+                if (running) {
+                    try {
+                        Thread.sleep(1000L);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            deflater.end();
+        }
+        private void write(DataOutputStream out) throws IOException, InterruptedException {
+            while (running) {
+                T first = queue.poll(1L, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                buffer.reset();
+                deflater.reset();
+                DataOutputStream encoded = new DataOutputStream(new DeflaterOutputStream(buffer, deflater));
+                encoded.writeInt(batch.size());
+                for (T value : batch) {
+                    codec.write(value, encoded);
+                }
+                encoded.close();
+                out.writeInt(buffer.size());
+                buffer.writeTo(out);
+                out.flush();
+                sent.addAndGet(batch.size());
+                batches.incrementAndGet();
+                bytes.addAndGet(buffer.size() + 4L);
+                batch.clear();
+            }
+        }
+    }
+
+    private static void daemon(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void close(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    private static void close(ServerSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+}
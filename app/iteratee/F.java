@@ -279,12 +279,14 @@ public final class F {
         }
 
         public void onRedeem(F.Action<Promise<V>> callback) {
+            boolean redeemed;
             synchronized (this) {
-                if (!invoked) {
+                redeemed = invoked;
+                if (!redeemed) {
                     callbacks.add(callback);
                 }
             }
-            if (invoked) {
+            if (redeemed) {
                 callback.apply(this);
             }
         }
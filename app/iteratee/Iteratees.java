@@ -28,11 +28,18 @@ import java.io.*;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class Iteratees {
 
@@ -62,6 +69,25 @@ public class Iteratees {
         return AkkaInstance.AKKA.system();
     }
 
+    private static final ScheduledExecutorService timer = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "iteratees-timer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** Runs fine-grained timers, as Akka's scheduler only ticks every 100ms. */
+    static ScheduledExecutorService timer() {
+        return timer;
+    }
+
+    /** @return how many iteratee, enumerator and enumeratee actors are running. */
+    static long actors() {
+        return ForwarderActor.running.get();
+    }
+
     public static final class Elem<I> {
         private final I e;
         public Elem(I e) { this.e = e; }
@@ -72,6 +98,8 @@ public class Iteratees {
     private static enum Run { INSTANCE }
     public static enum Done { INSTANCE }
     public static enum Cont { INSTANCE }
+    private static enum Wake { INSTANCE }
+    private static enum Cancel { INSTANCE }
     public static final class Error<E> {
         public final E error;
         public Error(E error) {
@@ -79,21 +107,49 @@ public class Iteratees {
         }
     }
     private static class ForwarderActor extends UntypedActor {
+        static final AtomicLong running = new AtomicLong(0L);
         private final Forward forward;
         public ForwarderActor(Forward forward) {
             this.forward = forward;
         }
         @Override
         public void onReceive(Object o) throws Exception {
-            forward.onReceive(o, sender(), self());
+            if (forward instanceof Iteratee) {
+                ((Iteratee) forward).receive(o, sender(), self());
+            } else {
+                forward.onReceive(o, sender(), self());
+            }
+        }
+        /** Akka's default calls postStop, but a restarted enumerator isn't done. */
+        @Override
+        public void preStart() {
+            running.incrementAndGet();
+        }
+        @Override
+        public void preRestart(Throwable reason, scala.Option<Object> message) {
+        }
+        /** Akka's default calls preStart, but the restarted actor was already counted. */
+        @Override
+        public void postRestart(Throwable reason) {
+        }
+        @Override
+        public void postStop() {
+            running.decrementAndGet();
+            if (forward instanceof Enumerator) {
+                ((Enumerator) forward).onDone();
+            } else if (forward instanceof StatefulEnumeratee) {
+                ((StatefulEnumeratee) forward).onDone();
+            }
         }
-
     }
     public static interface Forward {
         public void onReceive(Object msg, ActorRef sender, ActorRef self) throws Exception;
     }
     public static abstract class Iteratee<I, O> implements Forward {
         protected Promise<O> promise = new Promise<O>();
+        private volatile ActorRef ref;
+        private volatile ActorRef upstream;
+        private volatile boolean cancelled = false;
         public void done(O result, ActorRef sender, ActorRef self) {
             promise.apply((O) result);
             sender.tell(Done.INSTANCE, self);
@@ -102,9 +158,54 @@ public class Iteratees {
         public Promise<O> getAsyncResult() {
             return promise;
         }
+        /**
+         * Tells whatever feeds this iteratee that it's done. Safe from any thread,
+         * before or after it is applied.
+         */
+        public void cancel() {
+            cancelled = true;
+            ActorRef self = ref;
+            if (self != null) {
+                self.tell(Cancel.INSTANCE);
+            }
+        }
+        protected O cancelled() {
+            return null;
+        }
+        void attached(ActorRef self, ActorRef upstream) {
+            this.ref = self;
+            this.upstream = upstream;
+            if (cancelled) {
+                self.tell(Cancel.INSTANCE);
+            }
+        }
+        void receive(Object msg, ActorRef sender, ActorRef self) throws Exception {
+            if (msg == Cancel.INSTANCE) {
+                if (upstream != null) {
+                    promise.apply(cancelled());
+                    upstream.tell(Done.INSTANCE, self);
+                    self.tell(PoisonPill.getInstance());
+                }
+                return;
+            }
+            if (msg instanceof Elem || msg == EOF.INSTANCE || msg == Empty.INSTANCE) {
+                upstream = sender;
+            }
+            if (cancelled) {
+                promise.apply(cancelled());
+                sender.tell(Done.INSTANCE, self);
+                self.tell(PoisonPill.getInstance());
+                return;
+            }
+            onReceive(msg, sender, self);
+        }
         public static <T> Iteratee<T, Unit> foreach(Function<T, Unit> func) {
             return new ForeachIteratee<T>(func);
         }
+        /** Only asks for the next element once the promise returned for the last one is redeemed. */
+        public static <T> Iteratee<T, Unit> foreachAsync(Function<T, Promise<Unit>> func) {
+            return new ForeachAsyncIteratee<T>(func);
+        }
         public static <T> Iteratee<byte[], Unit> toStream(OutputStream os) {
             return new OutputStreamIteratee(os);
         }
@@ -145,6 +246,15 @@ public class Iteratees {
                 done(Unit.unit(), sender, self);
             }
         }
+        @Override
+        protected Unit cancelled() {
+            try {
+                stream.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            return Unit.unit();
+        }
     }
     public static class HeadIteratee<T> extends Iteratee<T, Option<T>> {
         public void onReceive(Object msg, ActorRef sender, ActorRef self) throws Exception {
@@ -159,6 +269,10 @@ public class Iteratees {
                 done(opt, sender, self);
             }
         }
+        @Override
+        protected Option<T> cancelled() {
+            return Option.none();
+        }
     }
     public static class IgnoreIteratee<T> extends Iteratee<T, Unit> {
         public void onReceive(Object msg, ActorRef sender, ActorRef self) throws Exception {
@@ -166,6 +280,10 @@ public class Iteratees {
                 done(Unit.unit(), sender, self);
             }
         }
+        @Override
+        protected Unit cancelled() {
+            return Unit.unit();
+        }
     }
     public static abstract class Enumerator<I> implements Forward {
 
@@ -176,6 +294,9 @@ public class Iteratees {
             for (Cont cont : F.caseClassOf(Cont.class, msg)) {
                 sendNext(msg, sender, self);
             }
+            for (Wake wake : F.caseClassOf(Wake.class, msg)) {
+                sendNext(msg, sender, self);
+            }
             for (Done done : F.caseClassOf(Done.class, msg)) {
                 sender.tell(PoisonPill.getInstance(), self);
                 self.tell(PoisonPill.getInstance());
@@ -210,15 +331,28 @@ public class Iteratees {
         void onApply() {
             //System.out.println("on apply from Enumerator");
         }
+        /** Called once the actor driving this enumerator stopped, however the stream ended. */
+        void onDone() {
+        }
+        /** @return true if, after an Empty, the next element comes without being asked again. */
+        boolean resumes() {
+            return false;
+        }
         ActorRef enumerator;
         ActorRef iteratee;
         public <O> Promise<O> applyOn(Iteratee<I, O> it) {
             Promise<O> res = it.getAsyncResult();
-            iteratee = system().actorOf(forwarderActorProps(it), UUID.randomUUID().toString());
-            enumerator = system().actorOf(forwarderActorProps(this), UUID.randomUUID().toString());
-            enumerator.tell(Run.INSTANCE, iteratee);
+            ActorRef ref = system().actorOf(forwarderActorProps(it), UUID.randomUUID().toString());
+            it.attached(ref, start(ref));
             return res;
         }
+        /** Starts feeding {@code downstream} and returns the actor it reads from. */
+        ActorRef start(ActorRef downstream) {
+            iteratee = downstream;
+            enumerator = system().actorOf(forwarderActorProps(this), UUID.randomUUID().toString());
+            enumerator.tell(Run.INSTANCE, downstream);
+            return enumerator;
+        }
         public Enumerator<I> andThen(final Enumerator<I> then) {
             final Enumerator<I> and = this;
             return new Enumerator<I>() {
@@ -243,8 +377,29 @@ public class Iteratees {
         public <O> Enumerator<O> through(Enumeratee<I, O>... enumeratees) {
             return new DecoratedEnumerator<O>(this, enumeratees);
         }
+        /** Takes one element from each enumerator in turn. */
         public static <T> Enumerator<T> interleave(Enumerator<T>... enumerators) {
-            return new InterleavedEnumerators<T>(enumerators);
+            return merge(Merge.roundRobin(), enumerators);
+        }
+        /** {@code merge} picks among the enumerators that have an element ready. */
+        public static <T> Enumerator<T> merge(Merge merge, Enumerator<T>... enumerators) {
+            return new MergedEnumerator<T>(merge, enumerators);
+        }
+        /** Merges enumerators that are each sorted into one sorted stream. */
+        public static <T> Enumerator<T> mergeSorted(Comparator<? super T> comparator, Enumerator<T>... enumerators) {
+            return new MergedEnumerator<T>(Merge.sorted(comparator), enumerators);
+        }
+        /** Pairs the elements of {@code a} and {@code b} until either ends. */
+        public static <A, B> Enumerator<F.Tuple<A, B>> zip(Enumerator<A> a, Enumerator<B> b) {
+            return new ZipEnumerator<A, B>(a, b);
+        }
+        /** Combines the latest element of each side every time one of them gives a new one. */
+        public static <A, B, C> Enumerator<C> combineLatest(Enumerator<A> a, Enumerator<B> b, Function<F.Tuple<A, B>, C> combine) {
+            return new CombineLatestEnumerator<A, B, C>(a, b, combine);
+        }
+        /** Pairs the elements of both sides sharing a key within {@code window}. */
+        public static <L, R, K> Enumerator<F.Tuple<L, R>> join(Enumerator<L> left, Enumerator<R> right, Function<L, K> leftKey, Function<R, K> rightKey, Window window) {
+            return new JoinEnumerator<L, R, K>(left, right, leftKey, rightKey, window);
         }
         public static <T> Enumerator<T> of(T... args) {
             return new IterableEnumerator(Arrays.asList(args));
@@ -275,6 +430,9 @@ public class Iteratees {
         public static <T> PushEnumerator<T> unicast(Class<T> clazz) {
             return new PushEnumerator<T>();
         }
+        public static <T> PushEnumerator<T> unicast(Class<T> clazz, int capacity) {
+            return new PushEnumerator<T>(capacity);
+        }
         public static <T> PushEnumerator<T> generate(long every, TimeUnit unit, final Function<Unit, Option<T>> callback) {
             return new CallbackPushEnumerator<T>(every, unit, callback);
         }
@@ -284,6 +442,29 @@ public class Iteratees {
         public static <T> HubEnumerator<T> broadcast(Enumerator<T> enumerator, boolean start) {
             return new HubEnumerator(enumerator, start);
         }
+        public static <T> HubEnumerator<T> broadcast(Enumerator<T> enumerator, Replay replay) {
+            long history = replay.within > 0L ? 0L : 2L * replay.count;
+            int capacity = (int) Math.min(1 << 20, Math.max(HubEnumerator.DEFAULT_CAPACITY, history));
+            return new HubEnumerator(enumerator, true, capacity, replay);
+        }
+        public static <T> HubEnumerator<T> broadcast(Enumerator<T> enumerator, Cluster<T> cluster) {
+            return broadcast(enumerator, Replay.none(), cluster);
+        }
+        /** Also broadcasts to the subscribers of the peer nodes of {@code cluster}. */
+        public static <T> HubEnumerator<T> broadcast(Enumerator<T> enumerator, Replay replay, final Cluster<T> cluster) {
+            final PushEnumerator<T> merged = new PushEnumerator<T>();
+            cluster.deliverTo(merged);
+            enumerator.applyOn(Iteratee.foreach(new F.UFunction<T>() {
+                @Override
+                public void invoke(T value) {
+                    if (!merged.offer(value)) {
+                        cluster.undelivered();
+                    }
+                    cluster.publish(value);
+                }
+            }));
+            return broadcast(merged, replay);
+        }
         public static <T> Enumerator<T> eof() {
             return new Enumerator<T>() {
                 @Override
@@ -297,41 +478,30 @@ public class Iteratees {
             };
         }
         public static <T> Enumerator<T> interleave(final Class<T> clazz, final Enumerator<T>... enumerators) {
-            final PushEnumerator<T> push = Enumerator.unicast(clazz);
-            for (Enumerator<T> enumerator : enumerators) {
-                enumerator.applyOn(Iteratee.foreach(new F.UFunction<T>() {
-                    @Override
-                    public void invoke(T value) {
-                        push.push(value);
-                    }
-                }));
-            }
-            return push;
+            return interleave(enumerators);
         }
         public static <T> Enumerator<T> feed(final Class<T> clazz, final Enumerator<T> enumerator) {
             final PushEnumerator<T> penumerator = Enumerator.unicast(clazz);
-            enumerator.applyOn(Iteratee.foreach(new F.UFunction<T>() {
-                @Override
-                public void invoke(T o) {
-                    penumerator.push(o);
-                }
-            }));
+            enumerator.applyOn(Iteratee.foreachAsync(pushTo(penumerator)));
             return penumerator;
         }
         public static <T> Enumerator<T> feed(final Class<T> clazz, final HubEnumerator<T> enumerator) {
             final PushEnumerator<T> penumerator = Enumerator.unicast(clazz);
-            enumerator.add(Iteratee.foreach(new F.UFunction<T>() {
+            enumerator.add(Iteratee.foreachAsync(pushTo(penumerator)));
+            return penumerator;
+        }
+        private static <T> Function<T, Promise<Unit>> pushTo(final PushEnumerator<T> penumerator) {
+            return new Function<T, Promise<Unit>>() {
                 @Override
-                public void invoke(T o) {
-                    penumerator.push(o);
+                public Promise<Unit> apply(T o) {
+                    return penumerator.push(o);
                 }
-            }));
-            return penumerator;
+            };
         }
     }
     public static abstract class Enumeratee<I, O> implements Forward {
-        private ActorRef fromEnumerator;
-        private ActorRef toIteratee;
+        ActorRef fromEnumerator;
+        ActorRef toIteratee;
         private final Function<I, O> tranform;
         public Enumeratee(Function<I, O> tranform) {
             this.tranform = tranform;
@@ -348,10 +518,15 @@ public class Iteratees {
         public void onReceive(Object msg, ActorRef sender, ActorRef self) throws Exception {
             for (Elem e : F.caseClassOf(Elem.class, msg)) {
                 Elem<I> el = (Elem<I>) e;
+                O out = null;
                 for (I elem : el.get()) {
-                    O out = tranform.apply(elem);
-                    if (out != null)
-                        toIteratee.tell(new Elem<O>(out), self);
+                    out = tranform.apply(elem);
+                }
+                if (out != null) {
+                    toIteratee.tell(new Elem<O>(out), self);
+                } else {
+                    // nothing goes downstream, so nothing would ask for the next one
+                    fromEnumerator.tell(Cont.INSTANCE, self);
                 }
             }
             for (EOF eof : F.caseClassOf(EOF.class, msg)) {
@@ -378,6 +553,294 @@ public class Iteratees {
         public static <I,O> Enumeratee<I,I> collect(Function<I,Option<I>> transform) {
             return new CollectEnumeratee<I>(transform);
         }
+        /** Keeps only the latest element per key while downstream is busy. */
+        public static <I, K> Enumeratee<I, I> conflate(Function<I, K> key) {
+            return new ConflateEnumeratee<I, K>(key);
+        }
+        /** Emits the latest element at most once per interval. */
+        public static <I> Enumeratee<I, I> sample(long interval, TimeUnit unit) {
+            return new SampleEnumeratee<I>(interval, unit);
+        }
+        /**
+         * Lets {@code elements} through per {@code per}, after a burst of {@code
+         * burst}, and holds back the rest.
+         */
+        public static <I> Enumeratee<I, I> throttle(long elements, long per, TimeUnit unit, long burst) {
+            return new ThrottleEnumeratee<I>(elements, per, unit, burst, false, ThrottleEnumeratee.<I>perElement());
+        }
+        /** Like {@link #throttle}, but drops what exceeds the rate. */
+        public static <I> Enumeratee<I, I> rateLimit(long elements, long per, TimeUnit unit, long burst) {
+            return new ThrottleEnumeratee<I>(elements, per, unit, burst, true, ThrottleEnumeratee.<I>perElement());
+        }
+        /** Caps a stream of chunks to {@code bytes} bytes per unit of time. */
+        public static Enumeratee<byte[], byte[]> throttleBytes(long bytes, long per, TimeUnit unit, long burst) {
+            return new ThrottleEnumeratee<byte[]>(bytes, per, unit, burst, false, ThrottleEnumeratee.PER_BYTE);
+        }
+    }
+
+    /** An enumeratee with state, run as a stage of its own when applied. */
+    static abstract class StatefulEnumeratee<I, O> extends Enumeratee<I, O> {
+        StatefulEnumeratee() {
+            super(new Function<I, O>() {
+                @Override
+                public O apply(I i) {
+                    return (O) i;
+                }
+            });
+        }
+        /** @return a new instance, with a clean state, for each application. */
+        abstract StatefulEnumeratee<I, O> fresh();
+        /** Called once the actor running this stage stopped, however the stream ended. */
+        void onDone() {
+        }
+    }
+    private static class ConflateEnumeratee<I, K> extends StatefulEnumeratee<I, I> {
+        private final Function<I, K> key;
+        private final LinkedHashMap<K, I> pending = new LinkedHashMap<K, I>();
+        private boolean demand = true;
+        private boolean eof = false;
+        ConflateEnumeratee(Function<I, K> key) {
+            this.key = key;
+        }
+        @Override
+        StatefulEnumeratee<I, I> fresh() {
+            return new ConflateEnumeratee<I, K>(key);
+        }
+        @Override
+        public void onReceive(Object msg, ActorRef sender, ActorRef self) throws Exception {
+            for (Elem e : F.caseClassOf(Elem.class, msg)) {
+                for (Object o : e.get()) {
+                    I elem = (I) o;
+                    if (demand) {
+                        demand = false;
+                        toIteratee.tell(new Elem<I>(elem), self);
+                    } else {
+                        pending.put(key.apply(elem), elem);
+                    }
+                }
+                fromEnumerator.tell(Cont.INSTANCE, self);
+                return;
+            }
+            for (Empty empty : F.caseClassOf(Empty.class, msg)) {
+                // upstream will send the next one when it has it
+                return;
+            }
+            for (EOF e : F.caseClassOf(EOF.class, msg)) {
+                eof = true;
+                if (demand && pending.isEmpty()) {
+                    toIteratee.tell(EOF.INSTANCE, self);
+                }
+                return;
+            }
+            for (Cont cont : F.caseClassOf(Cont.class, msg)) {
+                if (!pending.isEmpty()) {
+                    Iterator<I> it = pending.values().iterator();
+                    I elem = it.next();
+                    it.remove();
+                    toIteratee.tell(new Elem<I>(elem), self);
+                } else if (eof) {
+                    toIteratee.tell(EOF.INSTANCE, self);
+                } else {
+                    demand = true;
+                }
+                return;
+            }
+            super.onReceive(msg, sender, self);
+        }
+    }
+    private static enum Tick { INSTANCE }
+    /** A token bucket refilled lazily from the elapsed time. */
+    private static class ThrottleEnumeratee<I> extends StatefulEnumeratee<I, I> {
+        private static final Function<Object, Long> PER_ELEMENT = new Function<Object, Long>() {
+            @Override
+            public Long apply(Object o) {
+                return 1L;
+            }
+        };
+        static final Function<byte[], Long> PER_BYTE = new Function<byte[], Long>() {
+            @Override
+            public Long apply(byte[] bytes) {
+                return (long) bytes.length;
+            }
+        };
+        static <I> Function<I, Long> perElement() {
+            return (Function<I, Long>) (Function) PER_ELEMENT;
+        }
+        private final long tokens;
+        private final long per;
+        private final TimeUnit unit;
+        private final long burst;
+        private final boolean drop;
+        private final Function<I, Long> cost;
+        private final double rate;
+        private double available;
+        private long refilled = System.nanoTime();
+        private I held;
+        private Cancellable timer;
+        private boolean eof = false;
+        ThrottleEnumeratee(long tokens, long per, TimeUnit unit, long burst, boolean drop, Function<I, Long> cost) {
+            this.tokens = tokens;
+            this.per = per;
+            this.unit = unit;
+            this.burst = Math.max(1L, burst);
+            this.drop = drop;
+            this.cost = cost;
+            this.rate = (double) tokens / unit.toNanos(per);
+            this.available = this.burst;
+        }
+        @Override
+        StatefulEnumeratee<I, I> fresh() {
+            return new ThrottleEnumeratee<I>(tokens, per, unit, burst, drop, cost);
+        }
+        @Override
+        public void onReceive(Object msg, ActorRef sender, ActorRef self) throws Exception {
+            for (Elem e : F.caseClassOf(Elem.class, msg)) {
+                if (e.get().isEmpty()) {
+                    fromEnumerator.tell(Cont.INSTANCE, self);
+                }
+                for (Object o : e.get()) {
+                    I elem = (I) o;
+                    if (acquire(elem)) {
+                        toIteratee.tell(new Elem<I>(elem), self);
+                    } else if (drop) {
+                        fromEnumerator.tell(Cont.INSTANCE, self);
+                    } else {
+                        held = elem;
+                        retry(self);
+                    }
+                }
+                return;
+            }
+            for (Tick tick : F.caseClassOf(Tick.class, msg)) {
+                timer = null;
+                if (held != null) {
+                    if (acquire(held)) {
+                        I elem = held;
+                        held = null;
+                        toIteratee.tell(new Elem<I>(elem), self);
+                    } else {
+                        retry(self);
+                    }
+                }
+                return;
+            }
+            for (EOF e : F.caseClassOf(EOF.class, msg)) {
+                if (held != null) {
+                    eof = true;
+                } else {
+                    toIteratee.tell(EOF.INSTANCE, self);
+                }
+                return;
+            }
+            for (Cont cont : F.caseClassOf(Cont.class, msg)) {
+                if (eof) {
+                    toIteratee.tell(EOF.INSTANCE, self);
+                } else {
+                    fromEnumerator.tell(Cont.INSTANCE, self);
+                }
+                return;
+            }
+            onDone();
+            super.onReceive(msg, sender, self);
+        }
+        @Override
+        void onDone() {
+            if (timer != null) {
+                timer.cancel();
+                timer = null;
+            }
+        }
+        private boolean acquire(I elem) {
+            long now = System.nanoTime();
+            available = Math.min(burst, available + (now - refilled) * rate);
+            refilled = now;
+            long needed = cost.apply(elem);
+            if (available >= Math.min(needed, burst)) {
+                available -= needed;
+                return true;
+            }
+            return false;
+        }
+        private void retry(ActorRef self) {
+            double missing = Math.min(cost.apply(held), burst) - available;
+            long wait = Math.max(1L, (long) Math.ceil(missing / rate));
+            timer = system().scheduler().scheduleOnce(Duration.apply(wait, TimeUnit.NANOSECONDS), self, Tick.INSTANCE);
+        }
+    }
+    private static class SampleEnumeratee<I> extends StatefulEnumeratee<I, I> {
+        private final long interval;
+        private final TimeUnit unit;
+        private Cancellable ticks;
+        private I latest;
+        private boolean fresh = false;
+        private boolean demand = true;
+        private boolean eof = false;
+        private boolean stopped = false;
+        SampleEnumeratee(long interval, TimeUnit unit) {
+            this.interval = interval;
+            this.unit = unit;
+        }
+        @Override
+        StatefulEnumeratee<I, I> fresh() {
+            return new SampleEnumeratee<I>(interval, unit);
+        }
+        @Override
+        public void onReceive(Object msg, ActorRef sender, ActorRef self) throws Exception {
+            if (ticks == null && !eof && !stopped) {
+                ticks = system().scheduler().schedule(Duration.apply(interval, unit), Duration.apply(interval, unit), self, Tick.INSTANCE);
+            }
+            for (Elem e : F.caseClassOf(Elem.class, msg)) {
+                for (Object o : e.get()) {
+                    latest = (I) o;
+                    fresh = true;
+                }
+                fromEnumerator.tell(Cont.INSTANCE, self);
+                return;
+            }
+            for (Empty empty : F.caseClassOf(Empty.class, msg)) {
+                return;
+            }
+            for (EOF e : F.caseClassOf(EOF.class, msg)) {
+                eof = true;
+                flush(self);
+                return;
+            }
+            for (Tick tick : F.caseClassOf(Tick.class, msg)) {
+                flush(self);
+                return;
+            }
+            for (Cont cont : F.caseClassOf(Cont.class, msg)) {
+                demand = true;
+                if (eof) {
+                    flush(self);
+                }
+                return;
+            }
+            onDone();
+            super.onReceive(msg, sender, self);
+        }
+        @Override
+        void onDone() {
+            stopped = true;
+            if (ticks != null) {
+                ticks.cancel();
+                ticks = null;
+            }
+        }
+        private void flush(ActorRef self) {
+            if (!demand) {
+                return;
+            }
+            if (fresh) {
+                demand = false;
+                fresh = false;
+                toIteratee.tell(new Elem<I>(latest), self);
+            } else if (eof) {
+                demand = false;
+                onDone();
+                toIteratee.tell(EOF.INSTANCE, self);
+            }
+        }
     }
 
     /**************************************************************************/
@@ -386,18 +849,17 @@ public class Iteratees {
 
     private static class DecoratedEnumerator<I> extends Enumerator<I> {
         private final Enumerator<?> fromEnumerator;
+        private final List<Enumeratee> enumeratees;
         private final List<Function> functions = new CopyOnWriteArrayList<Function>();
         private Iteratee<I, ?> toIteratee;
-        private final Enumeratee throughEnumeratee = Enumeratee.map(new Function<Object, Object>() {
-            @Override
-            public Object apply(Object t) {
-                return applyTransforms(t);
-            }
-        });
         DecoratedEnumerator(Enumerator<?> fromEnumerator,
                             Enumeratee<?, I>... throughEnumeratees) {
+            this(fromEnumerator, throughEnumeratees == null ? null : Arrays.<Enumeratee>asList(throughEnumeratees));
+        }
+        private DecoratedEnumerator(Enumerator<?> fromEnumerator, List<Enumeratee> throughEnumeratees) {
             this.fromEnumerator = fromEnumerator;
-            if (throughEnumeratees != null && throughEnumeratees.length > 0) {
+            if (throughEnumeratees != null && throughEnumeratees.size() > 0) {
+                this.enumeratees = throughEnumeratees;
                 for (Enumeratee enumeratee : throughEnumeratees) {
                     functions.add(enumeratee.tranform);
                 }
@@ -406,24 +868,68 @@ public class Iteratees {
             }
         }
 
+        /** Stateless enumeratees in a row are fused into one stage, stateful ones get their own. */
         @Override
         public <O> Promise<O> applyOn(Iteratee<I, O> it) {
             toIteratee = it;
             Promise<O> res = it.getAsyncResult();
-            iteratee = system().actorOf(forwarderActorProps(toIteratee), UUID.randomUUID().toString());
-            ActorRef enumeratee = system().actorOf(forwarderActorProps(throughEnumeratee), UUID.randomUUID().toString());
+            ActorRef ref = system().actorOf(forwarderActorProps(toIteratee), UUID.randomUUID().toString());
+            toIteratee.attached(ref, start(ref));
+            return res;
+        }
+        @Override
+        ActorRef start(ActorRef downstream) {
+            iteratee = downstream;
+            List<Enumeratee> stages = stages();
+            List<ActorRef> refs = new ArrayList<ActorRef>();
+            for (Enumeratee stage : stages) {
+                refs.add(system().actorOf(forwarderActorProps(stage), UUID.randomUUID().toString()));
+            }
             enumerator = system().actorOf(forwarderActorProps(fromEnumerator), UUID.randomUUID().toString());
+            for (int i = 0; i < stages.size(); i++) {
+                stages.get(i).setFromEnumerator(i == 0 ? enumerator : refs.get(i - 1));
+                stages.get(i).setToIteratee(i == stages.size() - 1 ? iteratee : refs.get(i + 1));
+            }
+            ActorRef first = refs.get(0);
             fromEnumerator.setEnumerator(enumerator);
-            fromEnumerator.setIteratee(enumeratee);
-            throughEnumeratee.setFromEnumerator(enumerator);
-            throughEnumeratee.setToIteratee(iteratee);
+            fromEnumerator.setIteratee(first);
             fromEnumerator.onApply();
-            enumerator.tell(Run.INSTANCE, enumeratee);
-            return res;
+            enumerator.tell(Run.INSTANCE, first);
+            return refs.get(refs.size() - 1);
+        }
+        private List<Enumeratee> stages() {
+            List<Enumeratee> stages = new ArrayList<Enumeratee>();
+            final List<Function> fused = new ArrayList<Function>();
+            for (Enumeratee enumeratee : enumeratees) {
+                if (enumeratee instanceof StatefulEnumeratee) {
+                    if (!fused.isEmpty()) {
+                        stages.add(fuse(new ArrayList<Function>(fused)));
+                        fused.clear();
+                    }
+                    stages.add(((StatefulEnumeratee) enumeratee).fresh());
+                } else {
+                    fused.add(enumeratee.tranform);
+                }
+            }
+            if (!fused.isEmpty()) {
+                stages.add(fuse(fused));
+            }
+            return stages;
         }
-        private Object applyTransforms(Object in) {
+        private static Enumeratee fuse(final List<Function> functions) {
+            return Enumeratee.map(new Function<Object, Object>() {
+                @Override
+                public Object apply(Object t) {
+                    return applyTransforms(functions, t);
+                }
+            });
+        }
+        private static Object applyTransforms(List<Function> functions, Object in) {
             Object res = in;
             for (Function func : functions) {
+                if (res == null) {
+                    return null;
+                }
                 res = func.apply(res);
             }
             return res;
@@ -436,7 +942,7 @@ public class Iteratees {
         @Override
         public Option<I> next() {
             for (Object o : fromEnumerator.next()) {
-                I i = (I) applyTransforms(o);
+                I i = (I) applyTransforms(functions, o);
                 return Option.some(i);
             }
             return Option.none();
@@ -446,16 +952,26 @@ public class Iteratees {
         void onApply() {
             fromEnumerator.onApply();
         }
+        @Override
+        void onDone() {
+            fromEnumerator.onDone();
+        }
+        @Override
+        boolean resumes() {
+            return fromEnumerator.resumes();
+        }
         void setEnumerator(ActorRef ref) {
             this.fromEnumerator.setEnumerator(ref);
         }
         void setIteratee(ActorRef ref) {
             this.fromEnumerator.setIteratee(ref);
         }
+        /** Extends the chain rather than pulling this enumerator, so that stateful stages keep their own. */
         @Override
         public <O> Enumerator<O> through(Enumeratee<I, O>... enumeratees) {
-            return new DecoratedEnumerator<O>(this, enumeratees);
-            //throw new RuntimeException("Not allowed. Try to chained Enumeratee instead");
+            List<Enumeratee> chain = new ArrayList<Enumeratee>(this.enumeratees);
+            chain.addAll(Arrays.<Enumeratee>asList(enumeratees));
+            return new DecoratedEnumerator<O>(fromEnumerator, chain);
         }
     }
     public static class IterableEnumerator<T> extends Enumerator<T> {
@@ -617,6 +1133,12 @@ public class Iteratees {
             }
         }
         @Override
+        void onDone() {
+            if (hasnext) {
+                close();
+            }
+        }
+        @Override
         public boolean hasNext() {
             return hasnext;
         }
@@ -626,6 +1148,7 @@ public class Iteratees {
         private final DataInputStream in;
         private final BufferedReader br;
         private boolean hasnext = true;
+        private String line;
         public FromFileLinesEnumerator(File f) {
             try {
                 fstream = new FileInputStream(f);
@@ -635,14 +1158,22 @@ public class Iteratees {
         }
         @Override
         public Option<String> next() {
-            String strLine = null;
+            if (!hasNext()) {
+                return Option.none();
+            }
+            String strLine = line;
+            line = null;
+            return Option.some(strLine);
+        }
+        // reads one line ahead, so that the end of the file is known before
+        // an element is asked for rather than sent as a null one
+        private void readLine() {
             try {
-                strLine = br.readLine();
+                line = br.readLine();
             } catch(Exception e) { e.printStackTrace(); }
-            if (strLine == null) {
+            if (line == null) {
                 close();
             }
-            return Option.some(strLine);
         }
         private void close() {
             hasnext = false;
@@ -653,170 +1184,926 @@ public class Iteratees {
             } catch(Exception e) { e.printStackTrace(); }
         }
         @Override
+        void onDone() {
+            if (hasnext) {
+                close();
+            }
+        }
+        @Override
         public boolean hasNext() {
+            if (line == null && hasnext) {
+                readLine();
+            }
             return hasnext;
         }
     }
+    /**
+     * An enumerator fed from any number of threads. {@link #offer} drops what
+     * doesn't fit in its bounded ring, {@link #push} waits for room.
+     */
     public static class PushEnumerator<T> extends Enumerator<T> {
-        private boolean hasnext = true;
-        private final ConcurrentLinkedQueue<T> pushQueue = new ConcurrentLinkedQueue<T>();
+        public static final int DEFAULT_CAPACITY = 1024;
+        private static final Promise<Unit> PUSHED = Promise.pure(Unit.unit());
+        private volatile boolean hasnext = true;
+        private final MpscRing<T> ring;
+        private final ConcurrentLinkedQueue<Waiter<T>> waiters = new ConcurrentLinkedQueue<Waiter<T>>();
+        private final AtomicInteger waiting = new AtomicInteger(0);
+        private final AtomicBoolean idle = new AtomicBoolean(false);
+        private final AtomicLong dropped = new AtomicLong(0L);
+        private boolean demand = false;
+        private boolean emptied = false;
+        public PushEnumerator() {
+            this(DEFAULT_CAPACITY);
+        }
+        public PushEnumerator(int capacity) {
+            this.ring = new MpscRing<T>(capacity);
+        }
         @Override
         public Option<T> next() {
-            return Option.apply(pushQueue.poll());
+            T elem = poll();
+            if (elem == null) {
+                idle.set(true);
+                elem = poll();
+                if (elem != null) {
+                    idle.set(false);
+                }
+            }
+            return Option.apply(elem);
         }
         @Override
         public boolean hasNext() {
-            if (!pushQueue.isEmpty()) {
+            if (!ring.isEmpty() || !waiters.isEmpty()) {
                 return true;
             }
             return hasnext;
         }
-        public void push(T elem) {
-            pushQueue.offer(elem);
+        @Override
+        void sendNext(Object msg, ActorRef sender, ActorRef self) {
+            if (msg != Wake.INSTANCE) {
+                demand = true;
+                emptied = false;
+            }
+            if (!demand) {
+                return;
+            }
+            if (!hasNext()) {
+                demand = false;
+                sender.tell(EOF.INSTANCE, self);
+                return;
+            }
+            Option<T> next = next();
+            for (T elem : next) {
+                demand = false;
+                sender.tell(new Elem<T>(elem), self);
+            }
+            if (next.isEmpty() && !emptied) {
+                emptied = true;
+                sender.tell(Empty.INSTANCE, self);
+            }
+        }
+        private T poll() {
+            Waiter<T> waiter = waiters.peek();
+            while (waiter != null && ring.offer(waiter.elem)) {
+                waiters.poll();
+                waiting.decrementAndGet();
+                waiter.promise.apply(Unit.unit());
+                waiter = waiters.peek();
+            }
+            return ring.poll();
+        }
+        /** @return false, and drops the element, if the buffer is full. */
+        public boolean offer(T elem) {
+            if (!hasnext) {
+                return false;
+            }
+            if (!waiters.isEmpty() || !ring.offer(elem)) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            signal();
+            return true;
+        }
+        /** @return how many offered elements were dropped for want of room. */
+        public long dropped() {
+            return dropped.get();
+        }
+        /**
+         * @return a promise redeemed once the element is buffered. As many elements
+         * as the buffer holds may wait behind it, past that this throws an
+         * {@code IllegalStateException}: wait for the promise before pushing more.
+         */
+        public Promise<Unit> push(T elem) {
+            if (!hasnext) {
+                return PUSHED;
+            }
+            Promise<Unit> pushed = enqueue(elem);
+            signal();
+            return pushed;
+        }
+        /** Pushes several elements with a single wakeup, those before one refused stay pushed. */
+        public Promise<Unit> pushAll(Iterable<T> elems) {
+            Promise<Unit> pushed = PUSHED;
+            if (hasnext) {
+                for (T elem : elems) {
+                    pushed = enqueue(elem);
+                }
+                signal();
+            }
+            return pushed;
+        }
+        private Promise<Unit> enqueue(T elem) {
+            if (waiters.isEmpty() && ring.offer(elem)) {
+                return PUSHED;
+            }
+            if (waiting.incrementAndGet() > ring.capacity()) {
+                waiting.decrementAndGet();
+                dropped.incrementAndGet();
+                throw new IllegalStateException("Pushed past " + ring.capacity() + " waiting elements");
+            }
+            Waiter<T> waiter = new Waiter<T>(elem);
+            waiters.offer(waiter);
+            return waiter.promise;
+        }
+        @Override
+        boolean resumes() {
+            return true;
+        }
+        private void signal() {
             try {
-                if (enumerator != null) {
-                    enumerator.tell(Cont.INSTANCE, iteratee);
-                } else {
-                    //System.out.println("null ...");
-                    //throw new RuntimeException("Enumerator should not be null");
+                if (idle.get() && idle.compareAndSet(true, false) && enumerator != null) {
+                    enumerator.tell(Wake.INSTANCE, iteratee);
                 }
             } catch (Exception e) { e.printStackTrace(); }
         }
         public void stop() {
             hasnext = false;
             iteratee.tell(EOF.INSTANCE, enumerator);
-            enumerator.tell(Done.INSTANCE, iteratee);
+            enumerator.tell(Done.INSTANCE);
+        }
+        @Override
+        void onDone() {
+            hasnext = false;
+            while (poll() != null) {
+            }
+            Waiter<T> waiter = waiters.poll();
+            while (waiter != null) {
+                waiting.decrementAndGet();
+                waiter.promise.apply(Unit.unit());
+                waiter = waiters.poll();
+            }
         }
     }
-    private static class CallbackPushEnumerator<T> extends PushEnumerator<T> {
+    private static final class Waiter<T> {
+        final T elem;
+        final Promise<Unit> promise = new Promise<Unit>();
+        Waiter(T elem) {
+            this.elem = elem;
+        }
+    }
+    /** A bounded multi-producer single-consumer queue, each slot carrying the sequence it expects next. */
+    private static final class MpscRing<T> {
+        private final Object[] items;
+        private final AtomicLongArray sequences;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong(0L);
+        private volatile long head = 0L;
+        MpscRing(int capacity) {
+            int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            items = new Object[size];
+            sequences = new AtomicLongArray(size);
+            mask = size - 1;
+            for (int i = 0; i < size; i++) {
+                sequences.set(i, i);
+            }
+        }
+        boolean offer(T elem) {
+            long position = tail.get();
+            while (true) {
+                int index = (int) (position & mask);
+                long difference = sequences.get(index) - position;
+                if (difference == 0L) {
+                    if (tail.compareAndSet(position, position + 1L)) {
+                        items[index] = elem;
+                        sequences.set(index, position + 1L);
+                        return true;
+                    }
+                } else if (difference < 0L) {
+                    return false;
+                }
+                position = tail.get();
+            }
+        }
+        T poll() {
+            long position = head;
+            int index = (int) (position & mask);
+            if (sequences.get(index) != position + 1L) {
+                return null;
+            }
+            T elem = (T) items[index];
+            items[index] = null;
+            sequences.set(index, position + items.length);
+            head = position + 1L;
+            return elem;
+        }
+        boolean isEmpty() {
+            return sequences.get((int) (head & mask)) != head + 1L;
+        }
+        int capacity() {
+            return items.length;
+        }
+    }
+    private static class CallbackPushEnumerator<T> extends PushEnumerator<T> {
         private final long every;
         private final TimeUnit unit;
         private final Function<Unit, Option<T>> callback;
         private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private volatile TimerGroup group;
         public CallbackPushEnumerator(long every, TimeUnit unit, Function<Unit, Option<T>> callback) {
             this.every = every;
             this.unit = unit;
             this.callback = callback;
         }
         @Override
-        public <O> Promise<O> applyOn(Iteratee<T, O> it) {
-            Promise<O> promise = super.applyOn(it);
-            if (!scheduled.get()) {
-                schedule();
+        ActorRef start(ActorRef downstream) {
+            ActorRef ref = super.start(downstream);
+            schedule();
+            return ref;
+        }
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                group = TimerWheel.instance().join(unit.toNanos(every), (Function) callback, this);
             }
-            return promise;
-        }
-        private void schedule() {
-            cancel = system().scheduler().schedule(Duration.apply(0, TimeUnit.MILLISECONDS), Duration.apply(every, unit), new Runnable() {
-                @Override
-                public void run() {
-                    Option<T> opt = callback.apply(Unit.unit());
-                    for (T elem : opt) {
-                        push(elem);
-                    }
-                }
-            });
-            scheduled.set(true);
         }
         @Override
         void onApply() {
-            if (!scheduled.get()) {
-                schedule();
+            schedule();
+        }
+        private void unschedule() {
+            TimerGroup current = group;
+            if (current != null) {
+                group = null;
+                TimerWheel.instance().leave(current, this);
             }
         }
-        private Cancellable cancel;
         @Override
         public void stop() {
             super.stop();
-            if (cancel != null) {
-                cancel.cancel();
+            unschedule();
+        }
+        @Override
+        void onDone() {
+            super.onDone();
+            unschedule();
+        }
+    }
+
+    /**
+     * Drives every generated enumerator from one scheduled task, cancelled while
+     * there is none. Generators with the same period and callback share a group.
+     */
+    private static final class TimerWheel {
+        private static final long TICK = TimeUnit.MILLISECONDS.toNanos(10L);
+        private static final int WHEEL_SIZE = 512;
+        private static TimerWheel instance;
+        private final List<TimerGroup>[] buckets = new List[WHEEL_SIZE];
+        private final Queue<TimerGroup> added = new ConcurrentLinkedQueue<TimerGroup>();
+        private final ConcurrentHashMap<TimerKey, TimerGroup> groups = new ConcurrentHashMap<TimerKey, TimerGroup>();
+        private final List<TimerGroup> due = new ArrayList<TimerGroup>();
+        private final long origin = System.nanoTime();
+        private final AtomicBoolean advancing = new AtomicBoolean(false);
+        private long tick = 0L;
+        private ScheduledFuture<?> ticks;
+        private TimerWheel() {
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                buckets[i] = new ArrayList<TimerGroup>();
+            }
+        }
+        private synchronized void wake() {
+            if (ticks == null) {
+                tick = (System.nanoTime() - origin) / TICK;
+                ticks = timer().scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        advance();
+                    }
+                }, TICK, TICK, TimeUnit.NANOSECONDS);
+            }
+        }
+        private synchronized void park() {
+            if (ticks != null && groups.isEmpty()) {
+                ticks.cancel(false);
+                ticks = null;
+            }
+        }
+        static synchronized TimerWheel instance() {
+            if (instance == null) {
+                instance = new TimerWheel();
+            }
+            return instance;
+        }
+        TimerGroup join(long period, Function<Unit, Option<Object>> callback, PushEnumerator member) {
+            TimerKey key = new TimerKey(Math.max(1L, (period + TICK - 1L) / TICK), callback);
+            while (true) {
+                TimerGroup group = groups.get(key);
+                if (group == null) {
+                    TimerGroup created = new TimerGroup(key);
+                    group = groups.putIfAbsent(key, created);
+                    if (group == null) {
+                        group = created;
+                        added.offer(created);
+                    }
+                }
+                if (group.add(member)) {
+                    wake();
+                    return group;
+                }
+                // the group just lost its last member, a new one will be created
+                groups.remove(key, group);
+            }
+        }
+        void leave(TimerGroup group, PushEnumerator member) {
+            if (group.remove(member)) {
+                groups.remove(group.key, group);
+            }
+        }
+        /** A tick finding the previous one still running is skipped, the next one catches up. */
+        private void advance() {
+            if (!advancing.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                synchronized (this) {
+                    advance((System.nanoTime() - origin) / TICK);
+                }
+            } finally {
+                advancing.set(false);
+            }
+        }
+        private void advance(long now) {
+            while (tick <= now) {
+                TimerGroup group = added.poll();
+                while (group != null) {
+                    group.deadline = tick;
+                    buckets[(int) (tick & (WHEEL_SIZE - 1))].add(group);
+                    group = added.poll();
+                }
+                Iterator<TimerGroup> bucket = buckets[(int) (tick & (WHEEL_SIZE - 1))].iterator();
+                while (bucket.hasNext()) {
+                    TimerGroup candidate = bucket.next();
+                    if (candidate.isClosed()) {
+                        bucket.remove();
+                    } else if (candidate.deadline <= tick) {
+                        bucket.remove();
+                        due.add(candidate);
+                    }
+                }
+                for (TimerGroup fired : due) {
+                    fired.fire();
+                    fired.deadline = tick + fired.key.ticks;
+                    buckets[(int) (fired.deadline & (WHEEL_SIZE - 1))].add(fired);
+                }
+                due.clear();
+                tick++;
+            }
+            if (groups.isEmpty()) {
+                park();
             }
         }
     }
 
-    private static class InterleavedEnumerators<T> extends Enumerator<T> {
-        private final List<Enumerator<T>> enumerators;
-        private final CountDownLatch latch;
-        private final ActorRef globalIteratee;
-        private ActorRef finalIteratee;
-        public InterleavedEnumerators(Enumerator<T>... enumerators) {
-            this.latch = new CountDownLatch(enumerators.length);
-            Props iterateeProp = new Props().withCreator(new UntypedActorFactory() {
-                public Actor create() {
-                    return new UntypedActor() {
-                        @Override
-                        public void onReceive(Object msg) throws Exception {
-                            if (latch.getCount() == 0) {
-                                self().tell(PoisonPill.getInstance());
-                            }
-                            for (Elem e : F.caseClassOf(Elem.class, msg)) {
-                                finalIteratee.tell(e, self());
-                                sender().tell(Cont.INSTANCE, sender());
-                            }
-                            for (EOF eof : F.caseClassOf(EOF.class, msg)) {
-                                latch.countDown();
-                            }
-                        }
-                    };
+    private static final class TimerKey {
+        final long ticks;
+        final Function<Unit, Option<Object>> callback;
+        TimerKey(long ticks, Function<Unit, Option<Object>> callback) {
+            this.ticks = ticks;
+            this.callback = callback;
+        }
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TimerKey)) {
+                return false;
+            }
+            TimerKey other = (TimerKey) o;
+            return ticks == other.ticks && callback.equals(other.callback);
+        }
+        @Override
+        public int hashCode() {
+            return 31 * (int) (ticks ^ (ticks >>> 32)) + callback.hashCode();
+        }
+    }
+
+    private static final class TimerGroup {
+        final TimerKey key;
+        private final Set<PushEnumerator> members = Collections.newSetFromMap(new ConcurrentHashMap<PushEnumerator, Boolean>());
+        private boolean closed = false;
+        long deadline;
+        TimerGroup(TimerKey key) {
+            this.key = key;
+        }
+        synchronized boolean add(PushEnumerator member) {
+            if (closed) {
+                return false;
+            }
+            members.add(member);
+            return true;
+        }
+        synchronized boolean remove(PushEnumerator member) {
+            members.remove(member);
+            if (members.isEmpty()) {
+                closed = true;
+            }
+            return closed;
+        }
+        synchronized boolean isClosed() {
+            return closed;
+        }
+        void fire() {
+            try {
+                for (Object elem : key.callback.apply(Unit.unit())) {
+                    for (PushEnumerator member : members) {
+                        member.offer(elem);
+                    }
                 }
-            });
-            globalIteratee = system().actorOf(iterateeProp, UUID.randomUUID().toString());
-            this.enumerators = new CopyOnWriteArrayList<Enumerator<T>>(Arrays.asList(enumerators));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
         }
-        private ConcurrentLinkedQueue<Option<T>> queue = new ConcurrentLinkedQueue<Option<T>>();
+    }
+
+    /**
+     * Base of the enumerators combining several others from a single actor, asking
+     * each source for one element at a time while it {@link #wants} more.
+     */
+    private static abstract class Junction<T> extends Enumerator<T> {
+        final List<Enumerator<?>> sources;
+        private final Map<ActorRef, Integer> index = new HashMap<ActorRef, Integer>();
+        private ActorRef[] refs;
+        private boolean[] requested;
+        private ActorRef downstream;
+        private ActorRef self;
+        private boolean demand = false;
+        private boolean ended = false;
+        Junction(List<? extends Enumerator<?>> sources) {
+            this.sources = new ArrayList<Enumerator<?>>(sources);
+        }
+        abstract void begin(int sources);
+        abstract void received(int source, Object elem);
+        abstract void ended(int source);
+        abstract boolean wants(int source);
+        /** @return the next element downstream, or null if there is none yet. */
+        abstract Elem<T> produce();
+        abstract boolean exhausted();
         @Override
-        public Option<T> next() {
-            if (queue.isEmpty()) {
-                for (Enumerator en : enumerators) {
-                    if (en.hasNext()) {
-                        queue.offer(en.next());
+        public void onReceive(Object msg, ActorRef sender, ActorRef self) throws Exception {
+            if (msg == Run.INSTANCE) {
+                downstream = sender;
+                demand = true;
+                attach(self);
+            } else if (msg == Cont.INSTANCE) {
+                demand = true;
+            } else if (msg instanceof Elem) {
+                Integer source = index.get(sender);
+                if (source != null) {
+                    requested[source] = false;
+                    Object elem = ((Elem) msg).e;
+                    if (elem != null) {
+                        received(source, elem);
                     }
+                    request(source);
+                }
+            } else if (msg == Empty.INSTANCE) {
+                Integer source = index.get(sender);
+                if (source != null && !sources.get(source).resumes()) {
+                    // it would wait to be asked again
+                    requested[source] = false;
+                    request(source);
                 }
+            } else if (msg == EOF.INSTANCE) {
+                Integer source = index.remove(sender);
+                if (source != null) {
+                    refs[source] = null;
+                    sender.tell(Done.INSTANCE);
+                    ended(source);
+                }
+            } else if (msg == Done.INSTANCE || msg instanceof Error) {
+                // our sources are stopped once this actor is
+                self.tell(PoisonPill.getInstance());
+                return;
             }
-            if (!queue.isEmpty()) {
-                return queue.poll();
+            if (demand && !ended) {
+                Elem<T> elem = produce();
+                if (elem != null) {
+                    demand = false;
+                    downstream.tell(elem, self);
+                } else if (exhausted()) {
+                    ended = true;
+                    downstream.tell(EOF.INSTANCE, self);
+                }
+            }
+        }
+        private void attach(ActorRef self) {
+            int size = sources.size();
+            this.self = self;
+            refs = new ActorRef[size];
+            requested = new boolean[size];
+            begin(size);
+            for (int i = 0; i < size; i++) {
+                requested[i] = true;
+                refs[i] = sources.get(i).start(self);
+                index.put(refs[i], i);
+            }
+        }
+        /** Asks {@code source} for its next element, unless it was asked already, ended or isn't wanted. */
+        void request(int source) {
+            if (!requested[source] && refs[source] != null && wants(source)) {
+                requested[source] = true;
+                refs[source].tell(Cont.INSTANCE, self);
             }
-            return Option.none();
+        }
+        boolean running(int source) {
+            return refs[source] != null;
+        }
+        void stop(int source) {
+            if (refs[source] != null) {
+                index.remove(refs[source]);
+                refs[source].tell(Done.INSTANCE);
+                refs[source] = null;
+            }
+        }
+        @Override
+        void onDone() {
+            for (ActorRef ref : index.keySet()) {
+                ref.tell(Done.INSTANCE);
+            }
+            index.clear();
+        }
+        @Override
+        void onApply() {
+            for (Enumerator<?> source : sources) {
+                source.onApply();
+            }
+        }
+    }
+    /** Merges its sources, each with up to {@link Merge#PREFETCH} elements waiting. */
+    private static class MergedEnumerator<T> extends Junction<T> {
+        private final Merge merge;
+        private ArrayDeque<Elem<T>>[] queues;
+        private Merge.Selector selector;
+        private int open;
+        private int starving;
+        private int queued;
+        private int cursor = 0;
+        MergedEnumerator(Merge merge, Enumerator<T>... sources) {
+            super(Arrays.asList(sources));
+            this.merge = merge;
+        }
+        @Override
+        void begin(int sources) {
+            queues = new ArrayDeque[sources];
+            for (int i = 0; i < sources; i++) {
+                queues[i] = new ArrayDeque<Elem<T>>(merge.prefetch);
+            }
+            selector = merge.selector(sources);
+            open = sources;
+            starving = sources;
+        }
+        @Override
+        void received(int source, Object elem) {
+            if (queues[source].isEmpty()) {
+                starving--;
+                selector.ready(source, elem);
+            }
+            queues[source].add(new Elem<T>((T) elem));
+            queued++;
+        }
+        @Override
+        void ended(int source) {
+            open--;
+            if (queues[source].isEmpty()) {
+                starving--;
+            }
+        }
+        @Override
+        boolean wants(int source) {
+            return queues[source].size() < merge.prefetch;
+        }
+        @Override
+        Elem<T> produce() {
+            if (starving > 0 && selector.waitsForAll()) {
+                return null;
+            }
+            int source = selector.select();
+            if (source < 0) {
+                return null;
+            }
+            Elem<T> elem = queues[source].poll();
+            queued--;
+            if (!queues[source].isEmpty()) {
+                selector.ready(source, queues[source].peek().e);
+            } else if (running(source)) {
+                starving++;
+            }
+            request(source);
+            return elem;
+        }
+        @Override
+        boolean exhausted() {
+            return open == 0 && queued == 0;
         }
         @Override
         public boolean hasNext() {
-            for (Enumerator en : enumerators) {
-                if (en.hasNext()) {
+            for (Enumerator<?> source : sources) {
+                if (source.hasNext()) {
                     return true;
                 }
             }
-            return true;
+            return false;
         }
         @Override
-        public <O> Promise<O> applyOn(final Iteratee<T, O> it) {
-            Promise<O> res = it.getAsyncResult();
-            finalIteratee = system().actorOf(forwarderActorProps(it), UUID.randomUUID().toString());
-            for (Enumerator e : enumerators) {
-                e.iteratee = globalIteratee;
-                e.enumerator = system().actorOf(forwarderActorProps(e), UUID.randomUUID().toString());
-                e.enumerator.tell(Run.INSTANCE, globalIteratee);
-                e.onApply();
+        public Option<T> next() {
+            for (int i = 0; i < sources.size(); i++) {
+                Enumerator<T> source = (Enumerator<T>) sources.get(cursor);
+                cursor = (cursor + 1) % sources.size();
+                if (source.hasNext()) {
+                    Option<T> next = source.next();
+                    if (next.isDefined()) {
+                        return next;
+                    }
+                }
             }
-            return res;
+            return Option.none();
+        }
+    }
+    /** Pairs the elements of two sources, holding at most one of each. */
+    private static class ZipEnumerator<A, B> extends Junction<F.Tuple<A, B>> {
+        private final Object[] heads = new Object[2];
+        ZipEnumerator(Enumerator<A> a, Enumerator<B> b) {
+            super(Arrays.asList(a, b));
         }
-
         @Override
-        void onApply() {
-            for (Enumerator e : enumerators) {
-                e.onApply();
+        void begin(int sources) {
+        }
+        @Override
+        void received(int source, Object elem) {
+            heads[source] = elem;
+        }
+        @Override
+        void ended(int source) {
+            // nothing more to pair with the other side
+            if (heads[source] == null) {
+                stop(1 - source);
             }
         }
-        void setIteratee(ActorRef ref) {
-            for (Enumerator e : enumerators) {
-                e.setIteratee(ref);
+        @Override
+        boolean wants(int source) {
+            return heads[source] == null;
+        }
+        @Override
+        Elem<F.Tuple<A, B>> produce() {
+            if (heads[0] == null || heads[1] == null) {
+                return null;
+            }
+            F.Tuple<A, B> pair = new F.Tuple<A, B>((A) heads[0], (B) heads[1]);
+            heads[0] = null;
+            heads[1] = null;
+            request(0);
+            request(1);
+            if (!running(0) || !running(1)) {
+                stop(0);
+                stop(1);
             }
+            return new Elem<F.Tuple<A, B>>(pair);
         }
-        void setEnumerator(ActorRef ref) {
-            for (Enumerator e : enumerators) {
-                e.setEnumerator(ref);
+        @Override
+        boolean exhausted() {
+            return (!running(0) && heads[0] == null) || (!running(1) && heads[1] == null);
+        }
+        @Override
+        public boolean hasNext() {
+            return (heads[0] != null || sources.get(0).hasNext()) && (heads[1] != null || sources.get(1).hasNext());
+        }
+        /** Only pulls a side with no element waiting, so that the one ahead keeps its own. */
+        @Override
+        public Option<F.Tuple<A, B>> next() {
+            for (int source = 0; source < 2; source++) {
+                if (heads[source] == null && sources.get(source).hasNext()) {
+                    for (Object elem : sources.get(source).next()) {
+                        heads[source] = elem;
+                    }
+                }
+            }
+            if (heads[0] == null || heads[1] == null) {
+                return Option.none();
+            }
+            F.Tuple<A, B> pair = new F.Tuple<A, B>((A) heads[0], (B) heads[1]);
+            heads[0] = null;
+            heads[1] = null;
+            return Option.some(pair);
+        }
+    }
+    /** Holds at most one new element per source until downstream asks for the next combination. */
+    private static class CombineLatestEnumerator<A, B, C> extends Junction<C> {
+        private final Function<F.Tuple<A, B>, C> combine;
+        private final Object[] latest = new Object[2];
+        private final Object[] fresh = new Object[2];
+        private int turn = 0;
+        CombineLatestEnumerator(Enumerator<A> a, Enumerator<B> b, Function<F.Tuple<A, B>, C> combine) {
+            super(Arrays.asList(a, b));
+            this.combine = combine;
+        }
+        @Override
+        void begin(int sources) {
+        }
+        @Override
+        void received(int source, Object elem) {
+            fresh[source] = elem;
+        }
+        @Override
+        void ended(int source) {
+            // a side that never gave anything leaves nothing to combine
+            if (latest[source] == null && fresh[source] == null) {
+                stop(1 - source);
+            }
+        }
+        @Override
+        boolean wants(int source) {
+            return fresh[source] == null;
+        }
+        @Override
+        Elem<C> produce() {
+            return advance(true);
+        }
+        /** Takes in the fresh elements in turn until one makes a combination. */
+        private Elem<C> advance(boolean running) {
+            while (fresh[0] != null || fresh[1] != null) {
+                int source = fresh[turn] != null ? turn : 1 - turn;
+                turn = 1 - source;
+                latest[source] = fresh[source];
+                fresh[source] = null;
+                if (running) {
+                    request(source);
+                }
+                if (latest[0] != null && latest[1] != null) {
+                    C combined = combine.apply(new F.Tuple<A, B>((A) latest[0], (B) latest[1]));
+                    if (combined != null) {
+                        return new Elem<C>(combined);
+                    }
+                }
+            }
+            return null;
+        }
+        @Override
+        boolean exhausted() {
+            return !running(0) && !running(1) && fresh[0] == null && fresh[1] == null;
+        }
+        @Override
+        public boolean hasNext() {
+            return fresh[0] != null || fresh[1] != null || sources.get(0).hasNext() || sources.get(1).hasNext();
+        }
+        /** Like the actor, holds at most one fresh element per side, never pulling over one waiting. */
+        @Override
+        public Option<C> next() {
+            for (int source = 0; source < 2; source++) {
+                if (fresh[source] == null && sources.get(source).hasNext()) {
+                    for (Object elem : sources.get(source).next()) {
+                        fresh[source] = elem;
+                    }
+                }
+            }
+            Elem<C> elem = advance(false);
+            return elem == null ? Option.<C>none() : Option.some(elem.e);
+        }
+    }
+    /**
+     * Each side keeps its window in a map per key, and nothing is pulled while
+     * pairs wait to go downstream.
+     */
+    private static class JoinEnumerator<L, R, K> extends Junction<F.Tuple<L, R>> {
+        private final Function<L, K> leftKey;
+        private final Function<R, K> rightKey;
+        private final Window window;
+        private final JoinWindow[] sides = new JoinWindow[] { new JoinWindow(), new JoinWindow() };
+        private final ArrayDeque<F.Tuple<L, R>> pairs = new ArrayDeque<F.Tuple<L, R>>();
+        private int turn = 0;
+        JoinEnumerator(Enumerator<L> left, Enumerator<R> right, Function<L, K> leftKey, Function<R, K> rightKey, Window window) {
+            super(Arrays.asList(left, right));
+            this.leftKey = leftKey;
+            this.rightKey = rightKey;
+            this.window = window;
+        }
+        @Override
+        void begin(int sources) {
+        }
+        @Override
+        void received(int source, Object elem) {
+            Object key = source == 0 ? leftKey.apply((L) elem) : rightKey.apply((R) elem);
+            if (key == null) {
+                return;
+            }
+            long now = window.within > 0L ? System.nanoTime() : 0L;
+            sides[0].expire(now, window);
+            sides[1].expire(now, window);
+            for (Object match : sides[1 - source].matches(key)) {
+                pairs.add(source == 0 ? new F.Tuple<L, R>((L) elem, (R) match) : new F.Tuple<L, R>((L) match, (R) elem));
+            }
+            sides[source].add(key, elem, now, window);
+        }
+        @Override
+        void ended(int source) {
+        }
+        @Override
+        boolean wants(int source) {
+            return pairs.isEmpty();
+        }
+        @Override
+        Elem<F.Tuple<L, R>> produce() {
+            F.Tuple<L, R> pair = pairs.poll();
+            if (pair == null) {
+                return null;
+            }
+            if (pairs.isEmpty()) {
+                request(0);
+                request(1);
+            }
+            return new Elem<F.Tuple<L, R>>(pair);
+        }
+        @Override
+        boolean exhausted() {
+            return !running(0) && !running(1) && pairs.isEmpty();
+        }
+        @Override
+        public boolean hasNext() {
+            return !pairs.isEmpty() || sources.get(0).hasNext() || sources.get(1).hasNext();
+        }
+        @Override
+        public Option<F.Tuple<L, R>> next() {
+            for (int i = 0; i < 2 && pairs.isEmpty(); i++) {
+                int source = turn;
+                turn = 1 - turn;
+                if (sources.get(source).hasNext()) {
+                    for (Object elem : sources.get(source).next()) {
+                        received(source, elem);
+                    }
+                }
+            }
+            return Option.apply(pairs.poll());
+        }
+    }
+    /** One side of a join, in arrival order for eviction and by key for matching. */
+    private static final class JoinWindow {
+        private final Map<Object, ArrayDeque<JoinEntry>> byKey = new HashMap<Object, ArrayDeque<JoinEntry>>();
+        private final ArrayDeque<JoinEntry> order = new ArrayDeque<JoinEntry>();
+        void add(Object key, Object value, long time, Window window) {
+            JoinEntry entry = new JoinEntry(key, value, time);
+            order.add(entry);
+            ArrayDeque<JoinEntry> entries = byKey.get(key);
+            if (entries == null) {
+                entries = new ArrayDeque<JoinEntry>();
+                byKey.put(key, entries);
+            }
+            entries.add(entry);
+            while (order.size() > window.size) {
+                evict();
+            }
+        }
+        void expire(long now, Window window) {
+            if (window.within > 0L) {
+                while (!order.isEmpty() && now - order.peek().time > window.within) {
+                    evict();
+                }
+            }
+        }
+        List<Object> matches(Object key) {
+            ArrayDeque<JoinEntry> entries = byKey.get(key);
+            if (entries == null) {
+                return Collections.emptyList();
+            }
+            List<Object> values = new ArrayList<Object>(entries.size());
+            for (JoinEntry entry : entries) {
+                values.add(entry.value);
+            }
+            return values;
+        }
+        // the oldest element overall is also the oldest of its key
+        private void evict() {
+            JoinEntry oldest = order.poll();
+            ArrayDeque<JoinEntry> entries = byKey.get(oldest.key);
+            entries.poll();
+            if (entries.isEmpty()) {
+                byKey.remove(oldest.key);
             }
         }
     }
+    private static final class JoinEntry {
+        final Object key;
+        final Object value;
+        final long time;
+        JoinEntry(Object key, Object value, long time) {
+            this.key = key;
+            this.value = value;
+            this.time = time;
+        }
+    }
     private static class ForeachIteratee<T> extends Iteratee<T, Unit> {
         private final Function<T, Unit> func;
         public ForeachIteratee(Function<T, Unit> func) {
@@ -835,6 +2122,39 @@ public class Iteratees {
                 done(Unit.unit(), sender, self);
             }
         }
+        @Override
+        protected Unit cancelled() {
+            return Unit.unit();
+        }
+    }
+    private static class ForeachAsyncIteratee<T> extends Iteratee<T, Unit> {
+        private final Function<T, Promise<Unit>> func;
+        public ForeachAsyncIteratee(Function<T, Promise<Unit>> func) {
+            this.func = func;
+        }
+        @Override
+        public void onReceive(Object msg, final ActorRef sender, final ActorRef self) throws Exception {
+            for (Elem e : F.caseClassOf(Elem.class, msg)) {
+                Option<T> elem = ((Elem<T>) e).get();
+                if (elem.isEmpty()) {
+                    sender.tell(Cont.INSTANCE, self);
+                    return;
+                }
+                func.apply(elem.get()).onRedeem(new F.Action<Promise<Unit>>() {
+                    @Override
+                    public void apply(Promise<Unit> done) {
+                        sender.tell(Cont.INSTANCE, self);
+                    }
+                });
+            }
+            for (EOF e : F.caseClassOf(EOF.class, msg)) {
+                done(Unit.unit(), sender, self);
+            }
+        }
+        @Override
+        protected Unit cancelled() {
+            return Unit.unit();
+        }
     }
     private static class MapEnumeratee<I, O> extends Enumeratee<I, O> {
         public MapEnumeratee(Function<I, O> transform) {
@@ -855,70 +2175,113 @@ public class Iteratees {
             });
         }
     }
+    /**
+     * Broadcasts the elements of an enumerator to any number of iteratees.
+     * <p>
+     * Elements are published once in a ring buffer that every subscriber reads
+     * from its own cursor. Only backpressuring subscribers hold the producer back,
+     * and parked subscribers are woken by one actor per shard.
+     */
     public static class HubEnumerator<T> {
-        private final List<ActorRef> iteratees = new CopyOnWriteArrayList<ActorRef>();
+        public static final int DEFAULT_CAPACITY = 1024;
         private final Enumerator<T> fromEnumerator;
+        private final Slot<T>[] ring;
+        private final int mask;
+        private final AtomicLong published = new AtomicLong(0L);
+        private final Set<HubReader> readers = Collections.newSetFromMap(new ConcurrentHashMap<HubReader, Boolean>());
+        private final Shard[] shards;
+        private final AtomicLong assigned = new AtomicLong(0L);
+        private final AtomicBoolean gated = new AtomicBoolean(false);
+        private volatile long gatingSequence = 0L;
+        private volatile boolean finished = false;
+        private volatile boolean stopped = false;
+        private final AtomicLong droppedOldest = new AtomicLong(0L);
+        private final AtomicLong droppedNewest = new AtomicLong(0L);
+        private final AtomicLong conflated = new AtomicLong(0L);
+        private final AtomicLong disconnected = new AtomicLong(0L);
+        private final Replay replay;
+        private final String epoch = Long.toString(UUID.randomUUID().getMostSignificantBits() & Long.MAX_VALUE, 36);
+        private final ActorRef publisher;
         private ActorRef enumerator;
-        private final ActorRef internalIteratee;
         private boolean start = false;
         public HubEnumerator(Enumerator<T> fromEnumerator, boolean start) {
+            this(fromEnumerator, start, DEFAULT_CAPACITY);
+        }
+        public HubEnumerator(Enumerator<T> fromEnumerator, boolean start, int capacity) {
+            this(fromEnumerator, start, capacity, Replay.none());
+        }
+        public HubEnumerator(Enumerator<T> fromEnumerator, boolean start, int capacity, Replay replay) {
+            this(fromEnumerator, start, capacity, replay, Runtime.getRuntime().availableProcessors());
+        }
+        public HubEnumerator(Enumerator<T> fromEnumerator, boolean start, int capacity, Replay replay, int shards) {
             this.fromEnumerator = fromEnumerator;
-            internalIteratee = system().actorOf(new Props().withCreator(new UntypedActorFactory() {
+            this.replay = replay;
+            int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            this.ring = (Slot<T>[]) new Slot[size];
+            this.mask = size - 1;
+            this.shards = (Shard[]) new HubEnumerator.Shard[Math.max(1, shards)];
+            for (int i = 0; i < this.shards.length; i++) {
+                this.shards[i] = new Shard();
+            }
+            publisher = system().actorOf(new Props().withCreator(new UntypedActorFactory() {
                 public Actor create() {
-                    return new UntypedActor() {
-                        @Override
-                        public void onReceive(Object msg) throws Exception {
-                            for (Cont cont : F.caseClassOf(Cont.class, msg)) {
-                                enumerator.tell(cont, self());
-                            }
-                            for (Done done : F.caseClassOf(Done.class, msg)) {
-                                if (!iteratees.isEmpty()) {
-                                    iteratees.remove(sender());
-                                } else {
-                                    enumerator.tell(done, self());
-                                }
-                            }
-                            for (Error error : F.caseClassOf(Error.class, msg)) {
-                                if (!iteratees.isEmpty()) {
-                                    iteratees.remove(sender());
-                                } else {
-                                    enumerator.tell(error, self());
-                                }
-                            }
-                            for (Elem e : F.caseClassOf(Elem.class, msg)) {
-                                for (ActorRef actor : iteratees) {
-                                    actor.tell(e, self());
-                                }
-                            }
-                            for (EOF eof : F.caseClassOf(EOF.class, msg)) {
-                                for (ActorRef actor : iteratees) {
-                                    actor.tell(eof, self());
-                                }
-                            }
-                            for (Empty empty : F.caseClassOf(Empty.class, msg)) {
-                                for (ActorRef actor : iteratees) {
-                                    actor.tell(empty, self());
-                                }
-                            }
-                        }
-                    };
+                    return new Publisher();
                 }
             }), UUID.randomUUID().toString());
             if (start) {
                 broadcast();
             }
-            this.start = start;
         }
         public HubEnumerator<T> add(final Iteratee<T, ?> iteratee) {
-            iteratees.add(system().actorOf(forwarderActorProps(iteratee), UUID.randomUUID().toString()));
+            return add(iteratee, Overflow.DEFAULT);
+        }
+        public HubEnumerator<T> add(final Iteratee<T, ?> iteratee, Overflow overflow) {
+            HubReader reader = new HubReader(overflow, null);
+            reader.join();
+            reader.applyOn(iteratee);
             return this;
         }
-        public void broadcast() {
+        /** Subscribers with equal encoders share the encoded value of each element. */
+        public <O> HubEnumerator<T> add(final Iteratee<O, ?> iteratee, Overflow overflow, Function<T, O> encoder) {
+            return add(iteratee, overflow, encoder, -1L);
+        }
+        /**
+         * Resumes right after sequence {@code after} while the ring still holds
+         * what came next, or follows the replay policy when it is negative.
+         */
+        public <O> HubEnumerator<T> add(final Iteratee<O, ?> iteratee, Overflow overflow, Function<T, O> encoder, long after) {
+            HubReader reader = new HubReader(overflow, encoder);
+            reader.resumeAfter = after;
+            reader.join();
+            reader.applyOn((Iteratee) iteratee);
+            return this;
+        }
+        /** @return an enumerator reading this hub from the moment it is applied. */
+        public Enumerator<T> subscribe(Overflow overflow) {
+            return new HubReader(overflow, null);
+        }
+        public <O> Enumerator<O> subscribe(Overflow overflow, Function<T, O> encoder) {
+            return (Enumerator<O>) (Enumerator) new HubReader(overflow, encoder);
+        }
+        /** An encoder that also gets the sequence of the element in the hub. */
+        public static abstract class SequencedEncoder<T, O> implements Function<T, O> {
+            public abstract O apply(long sequence, T value);
+            @Override
+            public O apply(T value) {
+                return apply(-1L, value);
+            }
+        }
+        /** @return a random id telling this hub apart from the ones before it. */
+        public String epoch() {
+            return epoch;
+        }
+        public void broadcast() {
             if (!start) {
+                start = true;
                 enumerator = system().actorOf(forwarderActorProps(fromEnumerator), UUID.randomUUID().toString());
                 fromEnumerator.enumerator = enumerator;
-                fromEnumerator.iteratee = internalIteratee;
-                enumerator.tell(Run.INSTANCE, internalIteratee);
+                fromEnumerator.iteratee = publisher;
+                publisher.tell(Run.INSTANCE);
                 if (fromEnumerator instanceof CallbackPushEnumerator) {
                     final CallbackPushEnumerator<T> p = (CallbackPushEnumerator<T>) fromEnumerator;
                     p.schedule();
@@ -929,11 +2292,992 @@ public class Iteratees {
         //    return Enumerator.consume(, this);
         //}
         public void stop() {
-            for (ActorRef actor : iteratees) {
-                actor.tell(PoisonPill.getInstance());
+            stopped = true;
+            wakeParked();
+            publisher.tell(PoisonPill.getInstance());
+            for (Shard shard : shards) {
+                shard.actor.tell(PoisonPill.getInstance());
+            }
+        }
+        /** @return what each overflow policy discarded, and how many subscribers were disconnected. */
+        public Map<String, Long> counters() {
+            Map<String, Long> counters = new LinkedHashMap<String, Long>();
+            counters.put("subscribers", (long) readers.size());
+            counters.put("published", published.get());
+            counters.put("droppedOldest", droppedOldest.get());
+            counters.put("droppedNewest", droppedNewest.get());
+            counters.put("conflated", conflated.get());
+            counters.put("disconnected", disconnected.get());
+            return counters;
+        }
+        private void wakeParked() {
+            for (Shard shard : shards) {
+                shard.signal();
+            }
+        }
+        private void released(long previous) {
+            if (gated.get() && previous <= gatingSequence && gated.compareAndSet(true, false)) {
+                publisher.tell(Cont.INSTANCE);
+            }
+        }
+
+        /** The subscribers parked in one shard, and the actor waking them up. */
+        private class Shard {
+            private final ConcurrentLinkedQueue<HubReader> parked = new ConcurrentLinkedQueue<HubReader>();
+            private final AtomicBoolean signalled = new AtomicBoolean(false);
+            private final ActorRef actor = system().actorOf(new Props().withCreator(new UntypedActorFactory() {
+                public Actor create() {
+                    return new UntypedActor() {
+                        @Override
+                        public void onReceive(Object msg) throws Exception {
+                            signalled.set(false);
+                            HubReader reader = parked.poll();
+                            while (reader != null) {
+                                reader.wake();
+                                reader = parked.poll();
+                            }
+                        }
+                    };
+                }
+            }), UUID.randomUUID().toString());
+            void signal() {
+                if (!parked.isEmpty() && signalled.compareAndSet(false, true)) {
+                    actor.tell(Cont.INSTANCE);
+                }
+            }
+        }
+
+        /** The only writer of the ring, poked with Cont when subscribers join or free some room. */
+        private class Publisher extends UntypedActor {
+            private boolean running = false;
+            private boolean requested = false;
+            @Override
+            public void onReceive(Object msg) throws Exception {
+                for (Run run : F.caseClassOf(Run.class, msg)) {
+                    running = true;
+                    requested = true;
+                    enumerator.tell(run, self());
+                }
+                for (Elem e : F.caseClassOf(Elem.class, msg)) {
+                    requested = false;
+                    long sequence = published.get();
+                    ring[(int) (sequence & mask)] = new Slot<T>(sequence, (Elem<T>) e);
+                    published.set(sequence + 1L);
+                    wakeParked();
+                    request();
+                }
+                for (Empty empty : F.caseClassOf(Empty.class, msg)) {
+                    // still requested, the source sends it as soon as it has one
+                }
+                for (EOF eof : F.caseClassOf(EOF.class, msg)) {
+                    finished = true;
+                    wakeParked();
+                }
+                for (Cont cont : F.caseClassOf(Cont.class, msg)) {
+                    request();
+                }
+                for (Join join : F.caseClassOf(Join.class, msg)) {
+                    long cursor = join.reader.resumeAfter >= 0L ? resumeStart(join.reader.resumeAfter) : replayStart();
+                    if (join.reader.gating && cursor < gatingSequence) {
+                        gatingSequence = cursor;
+                    }
+                    join.reader.start(cursor);
+                    request();
+                }
+            }
+            private long replayStart() {
+                long next = published.get();
+                long start = Math.max(0L, next - Math.min(replay.count, ring.length - 1L));
+                if (replay.within > 0L) {
+                    long oldest = System.nanoTime() - replay.within;
+                    while (start < next && ring[(int) (start & mask)].timestamp < oldest) {
+                        start++;
+                    }
+                }
+                return start;
+            }
+            private long resumeStart(long after) {
+                long next = published.get();
+                return Math.max(Math.min(after + 1L, next), Math.max(0L, next - (ring.length - 1L)));
+            }
+            private void request() {
+                if (running && !requested && !finished && !stopped && hasRoom()) {
+                    requested = true;
+                    enumerator.tell(Cont.INSTANCE, self());
+                }
+            }
+            /**
+             * Only walks the subscribers when the ring looks full, and publishes
+             * the gating sequence until it is stable so that the reader holding it
+             * pokes us.
+             */
+            private boolean hasRoom() {
+                long next = published.get();
+                if (next - gatingSequence < ring.length) {
+                    return true;
+                }
+                long minimum = minimumCursor(next);
+                while (true) {
+                    gatingSequence = minimum;
+                    gated.set(true);
+                    long current = minimumCursor(next);
+                    if (next - current < ring.length) {
+                        gatingSequence = current;
+                        gated.set(false);
+                        return true;
+                    }
+                    if (current == minimum) {
+                        return false;
+                    }
+                    minimum = current;
+                }
+            }
+            private long minimumCursor(long next) {
+                long minimum = next;
+                for (HubReader reader : readers) {
+                    if (reader.gating) {
+                        minimum = Math.min(minimum, reader.cursor);
+                    }
+                }
+                return minimum;
+            }
+            @Override
+            public void postStop() {
+                if (enumerator != null) {
+                    enumerator.tell(PoisonPill.getInstance());
+                }
+            }
+        }
+
+        /** Reads the ring from its own cursor, and parks when there is nothing left. */
+        private class HubReader extends Enumerator<T> {
+            private final Overflow overflow;
+            private final Function<T, ?> encoder;
+            private final Shard shard = shards[(int) (assigned.getAndIncrement() % shards.length)];
+            private final boolean gating;
+            private final int bound;
+            private volatile long cursor;
+            private long available;
+            private long windowEnd = -1L;
+            private long resumeAt = -1L;
+            private long resumeAfter = -1L;
+            private long dropped = 0L;
+            private boolean joining = false;
+            private volatile boolean joined = false;
+            private volatile boolean closed = false;
+            private final AtomicBoolean sleeping = new AtomicBoolean(false);
+            HubReader(Overflow overflow, Function<T, ?> encoder) {
+                this.overflow = overflow;
+                this.encoder = encoder;
+                this.gating = overflow.strategy == Overflow.Strategy.BACKPRESSURE;
+                this.bound = (int) Math.max(1, Math.min(overflow.size, ring.length / 2));
+            }
+            /** Joins through the publisher, the only thread setting cursors and the gating sequence. */
+            void join() {
+                if (!joining) {
+                    joining = true;
+                    publisher.tell(new Join(this));
+                }
+            }
+            void start(long from) {
+                cursor = from;
+                available = from;
+                readers.add(this);
+                joined = true;
+                if (closed) {
+                    // cancelled before its join went through
+                    readers.remove(this);
+                    return;
+                }
+                wake();
+            }
+            @Override
+            void onApply() {
+                join();
+            }
+            @Override
+            void onDone() {
+                close();
+            }
+            @Override
+            public void onReceive(Object msg, ActorRef sender, ActorRef self) throws Exception {
+                for (Done done : F.caseClassOf(Done.class, msg)) {
+                    close();
+                }
+                for (Error err : F.caseClassOf(Error.class, msg)) {
+                    close();
+                }
+                super.onReceive(msg, sender, self);
+            }
+            @Override
+            void sendNext(Object msg, ActorRef sender, ActorRef self) {
+                Object next = pull();
+                if (next != null) {
+                    sender.tell(next, self);
+                }
+            }
+            /** @return the next Elem, EOF, or null once parked. */
+            private Object pull() {
+                while (true) {
+                    if (stopped || closed) {
+                        close();
+                        return EOF.INSTANCE;
+                    }
+                    if (!joined) {
+                        join();
+                        sleeping.set(true);
+                        shard.parked.offer(this);
+                        if (!joined || !sleeping.compareAndSet(true, false)) {
+                            return null;
+                        }
+                        continue;
+                    }
+                    boolean ended = finished;
+                    if (cursor >= available || !gating) {
+                        available = published.get();
+                    }
+                    if (cursor < available && !gating && !overflow(available)) {
+                        disconnected.incrementAndGet();
+                        close();
+                        return EOF.INSTANCE;
+                    }
+                    if (cursor < available) {
+                        long previous = cursor;
+                        Slot<T> slot = ring[(int) (previous & mask)];
+                        if (slot.sequence != previous) {
+                            // lapped by the producer, the element is already gone
+                            long oldest = published.get() - ring.length + 1L;
+                            droppedOldest.addAndGet(oldest - previous);
+                            cursor = oldest;
+                            continue;
+                        }
+                        if (overflow.behind > 0L && System.nanoTime() - slot.timestamp > overflow.behind) {
+                            disconnected.incrementAndGet();
+                            close();
+                            return EOF.INSTANCE;
+                        }
+                        cursor = previous + 1L;
+                        if (gating) {
+                            released(previous);
+                        }
+                        return encoder == null ? slot.elem : slot.encoded(encoder);
+                    }
+                    if (ended) {
+                        close();
+                        return EOF.INSTANCE;
+                    }
+                    sleeping.set(true);
+                    shard.parked.offer(this);
+                    if (!(cursor < published.get() || finished || stopped) || !sleeping.compareAndSet(true, false)) {
+                        return null;
+                    }
+                }
+            }
+            /** @return false if the subscriber has to be disconnected. */
+            private boolean overflow(long available) {
+                long lag = available - cursor;
+                switch (overflow.strategy) {
+                    case DROP_OLDEST:
+                        if (lag > bound) {
+                            droppedOldest.addAndGet(lag - bound);
+                            cursor = available - bound;
+                        }
+                        break;
+                    case CONFLATE:
+                        if (lag > 1L) {
+                            conflated.addAndGet(lag - 1L);
+                            cursor = available - 1L;
+                        }
+                        break;
+                    case DROP_NEWEST:
+                        if (windowEnd >= 0L && cursor >= windowEnd) {
+                            if (resumeAt > cursor) {
+                                droppedNewest.addAndGet(resumeAt - cursor);
+                                cursor = resumeAt;
+                            }
+                            windowEnd = -1L;
+                            lag = available - cursor;
+                        }
+                        if (windowEnd < 0L && lag > bound) {
+                            windowEnd = cursor + bound;
+                            resumeAt = available;
+                        }
+                        break;
+                    case DISCONNECT:
+                        if (lag > bound) {
+                            droppedOldest.addAndGet(lag - bound);
+                            dropped += lag - bound;
+                            cursor = available - bound;
+                            if (dropped > overflow.dropped) {
+                                return false;
+                            }
+                        }
+                        break;
+                }
+                return true;
+            }
+            void wake() {
+                if (sleeping.compareAndSet(true, false)) {
+                    enumerator.tell(Cont.INSTANCE, iteratee);
+                }
+            }
+            private void close() {
+                if (!closed) {
+                    closed = true;
+                    readers.remove(this);
+                    if (gating) {
+                        released(cursor);
+                    }
+                }
+            }
+            @Override
+            public boolean hasNext() {
+                return !closed && !stopped && (cursor < published.get() || !finished);
+            }
+            /** Used when a decorating enumerator pulls this reader. */
+            @Override
+            public Option<T> next() {
+                Object next = pull();
+                for (Elem e : F.caseClassOf(Elem.class, next)) {
+                    return ((Elem<T>) e).get();
+                }
+                if (next != null) {
+                    // ask again, so that hasNext() gets the chance to say it's over
+                    enumerator.tell(Cont.INSTANCE, iteratee);
+                }
+                return Option.none();
+            }
+        }
+    }
+    private static final class Join {
+        final HubEnumerator.HubReader reader;
+        Join(HubEnumerator.HubReader reader) {
+            this.reader = reader;
+        }
+    }
+    /** A published element, and what each encoder made of it. */
+    private static final class Slot<T> {
+        final long sequence;
+        final long timestamp = System.nanoTime();
+        final Elem<T> elem;
+        private volatile Object[] encoded = new Object[0];
+        Slot(long sequence, Elem<T> elem) {
+            this.sequence = sequence;
+            this.elem = elem;
+        }
+        Elem<?> encoded(Function<T, ?> encoder) {
+            Elem<?> cached = lookup(encoder);
+            if (cached != null) {
+                return cached;
+            }
+            synchronized (this) {
+                cached = lookup(encoder);
+                if (cached == null) {
+                    Object value = encoder instanceof HubEnumerator.SequencedEncoder
+                            ? ((HubEnumerator.SequencedEncoder<T, ?>) encoder).apply(sequence, elem.e)
+                            : encoder.apply(elem.e);
+                    cached = new Elem<Object>(value);
+                    Object[] current = encoded;
+                    Object[] updated = Arrays.copyOf(current, current.length + 2);
+                    updated[current.length] = encoder;
+                    updated[current.length + 1] = cached;
+                    encoded = updated;
+                }
+                return cached;
+            }
+        }
+        private Elem<?> lookup(Function<T, ?> encoder) {
+            Object[] current = encoded;
+            for (int i = 0; i < current.length; i += 2) {
+                if (current[i] == encoder || current[i].equals(encoder)) {
+                    return (Elem<?>) current[i + 1];
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * What a hub subscriber does when it falls behind. Apart from backpressure,
+     * every policy keeps at most {@code size} elements pending.
+     */
+    public static final class Overflow {
+        static enum Strategy { BACKPRESSURE, DROP_OLDEST, DROP_NEWEST, CONFLATE, DISCONNECT }
+        final Strategy strategy;
+        final int size;
+        final long dropped;
+        final long behind;
+        /** Drops the oldest elements, so that a stalled subscriber never holds the others back. */
+        public static final Overflow DEFAULT = dropOldest(HubEnumerator.DEFAULT_CAPACITY);
+        private Overflow(Strategy strategy, int size, long dropped, long behind) {
+            this.strategy = strategy;
+            this.size = size;
+            this.dropped = dropped;
+            this.behind = behind;
+        }
+        /** Holds the hub back while this subscriber is behind, so one stalled client stalls them all. */
+        public static Overflow backpressure() {
+            return new Overflow(Strategy.BACKPRESSURE, Integer.MAX_VALUE, 0L, 0L);
+        }
+        public static Overflow dropOldest(int size) {
+            return new Overflow(Strategy.DROP_OLDEST, size, 0L, 0L);
+        }
+        public static Overflow dropNewest(int size) {
+            return new Overflow(Strategy.DROP_NEWEST, size, 0L, 0L);
+        }
+        public static Overflow conflate() {
+            return new Overflow(Strategy.CONFLATE, 1, 0L, 0L);
+        }
+        /** Drops the oldest beyond {@code size}, and disconnects once more than {@code dropped} were lost. */
+        public static Overflow disconnect(int size, long dropped) {
+            return new Overflow(Strategy.DISCONNECT, size, dropped, 0L);
+        }
+        /** Disconnects once the next element is older than {@code behind}. */
+        public static Overflow disconnect(long behind, TimeUnit unit) {
+            return new Overflow(Strategy.DISCONNECT, Integer.MAX_VALUE, Long.MAX_VALUE, unit.toNanos(behind));
+        }
+    }
+
+    /** How much recent history a new subscriber gets, never more than the ring holds. */
+    public static final class Replay {
+        final long count;
+        final long within;
+        private Replay(long count, long within) {
+            this.count = count;
+            this.within = within;
+        }
+        public static Replay none() {
+            return new Replay(0L, 0L);
+        }
+        public static Replay last(int count) {
+            return new Replay(count, 0L);
+        }
+        public static Replay within(long duration, TimeUnit unit) {
+            return new Replay(Long.MAX_VALUE, unit.toNanos(duration));
+        }
+    }
+
+    /** How long each side of a join remembers its elements. */
+    public static final class Window {
+        final int size;
+        final long within;
+        private Window(int size, long within) {
+            if (size <= 0) {
+                throw new IllegalArgumentException("Window size must be positive");
+            }
+            this.size = size;
+            this.within = within;
+        }
+        public static Window count(int size) {
+            return new Window(size, 0L);
+        }
+        public static Window time(long duration, TimeUnit unit, int maxSize) {
+            return new Window(maxSize, unit.toNanos(duration));
+        }
+    }
+
+    /** How a merge picks the next source among those with an element ready. */
+    public static final class Merge {
+        static enum Strategy { ROUND_ROBIN, WEIGHTED, PRIORITY, SORTED }
+        /** How many elements may wait per source. */
+        public static final int PREFETCH = 8;
+        final Strategy strategy;
+        final int[] weights;
+        final Comparator comparator;
+        final int prefetch;
+        private Merge(Strategy strategy, int[] weights, int prefetch) {
+            this(strategy, weights, null, prefetch);
+        }
+        private Merge(Strategy strategy, int[] weights, Comparator comparator, int prefetch) {
+            this.strategy = strategy;
+            this.weights = weights;
+            this.comparator = comparator;
+            this.prefetch = prefetch;
+        }
+        public static Merge roundRobin() {
+            return new Merge(Strategy.ROUND_ROBIN, null, PREFETCH);
+        }
+        /** Shares the elements between sources in proportion to their weights. */
+        public static Merge weighted(int... weights) {
+            for (int weight : weights) {
+                if (weight <= 0) {
+                    throw new IllegalArgumentException("Weights must be positive");
+                }
+            }
+            return new Merge(Strategy.WEIGHTED, weights.clone(), PREFETCH);
+        }
+        /** Always the first ready source, in the order given. */
+        public static Merge priority() {
+            return new Merge(Strategy.PRIORITY, null, PREFETCH);
+        }
+        /** The smallest next element, the sources being sorted already. */
+        static Merge sorted(Comparator<?> comparator) {
+            return new Merge(Strategy.SORTED, null, comparator, 1);
+        }
+        Selector selector(int sources) {
+            switch (strategy) {
+                case WEIGHTED:
+                    if (weights.length != sources) {
+                        throw new IllegalArgumentException("Expected " + sources + " weights, got " + weights.length);
+                    }
+                    return new WeightedSelector(weights);
+                case PRIORITY:
+                    return new PrioritySelector(sources);
+                case SORTED:
+                    return new SortedSelector(sources, comparator);
+                default:
+                    return new RoundRobinSelector(sources);
+            }
+        }
+        static abstract class Selector {
+            abstract void ready(int source, Object elem);
+            /** @return the source whose element goes next, or -1 to wait. */
+            abstract int select();
+            boolean waitsForAll() {
+                return false;
+            }
+        }
+        private static final class RoundRobinSelector extends Selector {
+            private final int[] ready;
+            private int head = 0;
+            private int size = 0;
+            RoundRobinSelector(int sources) {
+                this.ready = new int[Math.max(1, sources)];
+            }
+            @Override
+            void ready(int source, Object elem) {
+                ready[(head + size++) % ready.length] = source;
+            }
+            @Override
+            int select() {
+                if (size == 0) {
+                    return -1;
+                }
+                int source = ready[head];
+                head = (head + 1) % ready.length;
+                size--;
+                return source;
+            }
+        }
+        private static final class PrioritySelector extends Selector {
+            private final BitSet ready;
+            PrioritySelector(int sources) {
+                this.ready = new BitSet(sources);
+            }
+            @Override
+            void ready(int source, Object elem) {
+                ready.set(source);
+            }
+            @Override
+            int select() {
+                int source = ready.nextSetBit(0);
+                if (source >= 0) {
+                    ready.clear(source);
+                }
+                return source;
+            }
+        }
+        /** A heap of the next element of each source, ties going to the first source. */
+        private static final class SortedSelector extends Selector {
+            private final PriorityQueue<Head> heap;
+            SortedSelector(int sources, final Comparator comparator) {
+                this.heap = new PriorityQueue<Head>(Math.max(1, sources), new Comparator<Head>() {
+                    @Override
+                    public int compare(Head a, Head b) {
+                        int order = comparator.compare(a.elem, b.elem);
+                        return order != 0 ? order : a.source - b.source;
+                    }
+                });
+            }
+            @Override
+            void ready(int source, Object elem) {
+                heap.add(new Head(source, elem));
+            }
+            @Override
+            int select() {
+                Head head = heap.poll();
+                return head == null ? -1 : head.source;
+            }
+            @Override
+            boolean waitsForAll() {
+                return true;
+            }
+        }
+        private static final class Head {
+            final int source;
+            final Object elem;
+            Head(int source, Object elem) {
+                this.source = source;
+                this.elem = elem;
+            }
+        }
+        /** Smooth weighted round robin among the ready sources. */
+        private static final class WeightedSelector extends Selector {
+            private final int[] weights;
+            private final long[] credits;
+            private final BitSet ready;
+            WeightedSelector(int[] weights) {
+                this.weights = weights;
+                this.credits = new long[weights.length];
+                this.ready = new BitSet(weights.length);
+            }
+            @Override
+            void ready(int source, Object elem) {
+                ready.set(source);
+            }
+            @Override
+            int select() {
+                int best = -1;
+                long total = 0L;
+                for (int i = ready.nextSetBit(0); i >= 0; i = ready.nextSetBit(i + 1)) {
+                    credits[i] += weights[i];
+                    total += weights[i];
+                    if (best < 0 || credits[i] > credits[best]) {
+                        best = i;
+                    }
+                }
+                if (best >= 0) {
+                    credits[best] -= total;
+                    ready.clear(best);
+                }
+                return best;
+            }
+        }
+    }
+    /**
+     * A hub for subscribers that only want some of the elements, indexed by key
+     * and by value range rather than filtered one by one.
+     */
+    public static class IndexedHubEnumerator<T, K> {
+        private final Function<T, K> key;
+        private final Function<T, Option<Double>> value;
+        private final Set<IndexedSubscriber> subscribers = Collections.newSetFromMap(new ConcurrentHashMap<IndexedSubscriber, Boolean>());
+        private final ConcurrentLinkedQueue<IndexedSubscriber> joining = new ConcurrentLinkedQueue<IndexedSubscriber>();
+        private final ConcurrentLinkedQueue<IndexedSubscriber> leaving = new ConcurrentLinkedQueue<IndexedSubscriber>();
+        private final Map<K, KeyIndex> index = new HashMap<K, KeyIndex>();
+        private final DispatchIteratee dispatcher = new DispatchIteratee();
+        private volatile boolean stopped = false;
+        /**
+         * @param key   the only key an element is published under.
+         * @param value what subscription ranges are checked against, null matching any range.
+         */
+        public IndexedHubEnumerator(Enumerator<T> fromEnumerator, Function<T, K> key, Function<T, Option<Double>> value) {
+            this.key = key;
+            this.value = value;
+            fromEnumerator.applyOn(dispatcher);
+        }
+        /** @return an enumerator only indexed once it is applied. */
+        public <O> Enumerator<O> subscribe(Criteria<K> criteria, Function<T, O> encoder) {
+            return new IndexedSubscriber(criteria, encoder).out;
+        }
+        private void join(IndexedSubscriber subscriber) {
+            subscribers.add(subscriber);
+            joining.offer(subscriber);
+        }
+        /** Unindexed by the dispatching actor, which owns the index. */
+        private void leave(IndexedSubscriber subscriber) {
+            if (!subscribers.remove(subscriber)) {
+                // never applied, so never indexed
+                return;
+            }
+            leaving.offer(subscriber);
+            ActorRef ref = ((Iteratee) dispatcher).ref;
+            if (ref != null) {
+                ref.tell(Wake.INSTANCE);
+            }
+        }
+        public void stop() {
+            stopped = true;
+            for (IndexedSubscriber subscriber : subscribers) {
+                subscriber.stop();
+            }
+        }
+        private class DispatchIteratee extends Iteratee<T, Unit> {
+            private final List<List<IndexedSubscriber>> matched = new ArrayList<List<IndexedSubscriber>>();
+            private final Map<Function, Object> encoded = new IdentityHashMap<Function, Object>();
+            @Override
+            public void onReceive(Object msg, ActorRef sender, ActorRef self) throws Exception {
+                if (msg == Wake.INSTANCE) {
+                    update();
+                    return;
+                }
+                for (Elem e : F.caseClassOf(Elem.class, msg)) {
+                    if (stopped) {
+                        done(Unit.unit(), sender, self);
+                        return;
+                    }
+                    for (Object o : e.get()) {
+                        dispatch((T) o);
+                    }
+                    sender.tell(Cont.INSTANCE, self);
+                }
+                for (EOF eof : F.caseClassOf(EOF.class, msg)) {
+                    stop();
+                    done(Unit.unit(), sender, self);
+                }
+            }
+            private void update() {
+                IndexedSubscriber subscriber = joining.poll();
+                while (subscriber != null) {
+                    for (K k : subscriber.criteria.keys) {
+                        KeyIndex keyIndex = index.get(k);
+                        if (keyIndex == null) {
+                            keyIndex = new KeyIndex();
+                            index.put(k, keyIndex);
+                        }
+                        keyIndex.add(subscriber);
+                    }
+                    subscriber = joining.poll();
+                }
+                subscriber = leaving.poll();
+                while (subscriber != null) {
+                    for (K k : subscriber.criteria.keys) {
+                        KeyIndex keyIndex = index.get(k);
+                        if (keyIndex != null && keyIndex.remove(subscriber)) {
+                            index.remove(k);
+                        }
+                    }
+                    subscriber = leaving.poll();
+                }
+            }
+            private void dispatch(T elem) {
+                update();
+                KeyIndex keyIndex = index.get(key.apply(elem));
+                if (keyIndex == null) {
+                    return;
+                }
+                keyIndex.match(value.apply(elem), matched);
+                for (List<IndexedSubscriber> group : matched) {
+                    for (IndexedSubscriber s : group) {
+                        Object out = encoded.get(s.encoder);
+                        if (out == null && !encoded.containsKey(s.encoder)) {
+                            out = s.encoder.apply(elem);
+                            encoded.put(s.encoder, out);
+                        }
+                        if (out != null) {
+                            // a subscriber too slow to keep up misses elements
+                            s.out.offer(out);
+                        }
+                    }
+                }
+                matched.clear();
+                encoded.clear();
+            }
+        }
+        /** Subscribers of one key, the ranged ones in an interval tree rebuilt lazily. */
+        private class KeyIndex {
+            private final List<IndexedSubscriber> unbounded = new ArrayList<IndexedSubscriber>();
+            private final Map<Range, List<IndexedSubscriber>> groups = new HashMap<Range, List<IndexedSubscriber>>();
+            private IntervalTree<List<IndexedSubscriber>> tree = null;
+            void add(IndexedSubscriber subscriber) {
+                if (!subscriber.criteria.ranged) {
+                    unbounded.add(subscriber);
+                    return;
+                }
+                Range range = new Range(subscriber.criteria.low, subscriber.criteria.high);
+                List<IndexedSubscriber> group = groups.get(range);
+                if (group == null) {
+                    group = new ArrayList<IndexedSubscriber>();
+                    groups.put(range, group);
+                    tree = null;
+                }
+                group.add(subscriber);
+            }
+            /** @return true if no subscriber is left under this key. */
+            boolean remove(IndexedSubscriber subscriber) {
+                if (!subscriber.criteria.ranged) {
+                    unbounded.remove(subscriber);
+                } else {
+                    Range range = new Range(subscriber.criteria.low, subscriber.criteria.high);
+                    List<IndexedSubscriber> group = groups.get(range);
+                    if (group != null && group.remove(subscriber) && group.isEmpty()) {
+                        groups.remove(range);
+                        tree = null;
+                    }
+                }
+                return unbounded.isEmpty() && groups.isEmpty();
+            }
+            void match(Option<Double> value, List<List<IndexedSubscriber>> matched) {
+                matched.add(unbounded);
+                if (value.isEmpty()) {
+                    matched.addAll(groups.values());
+                    return;
+                }
+                if (tree == null) {
+                    tree = new IntervalTree<List<IndexedSubscriber>>(groups);
+                }
+                tree.stab(value.get(), matched);
+            }
+        }
+        private class IndexedSubscriber {
+            final Criteria<K> criteria;
+            final Function encoder;
+            private final AtomicBoolean joined = new AtomicBoolean(false);
+            final PushEnumerator out = new PushEnumerator() {
+                @Override
+                ActorRef start(ActorRef downstream) {
+                    ActorRef ref = super.start(downstream);
+                    enter();
+                    return ref;
+                }
+                @Override
+                void onApply() {
+                    enter();
+                }
+                @Override
+                void onDone() {
+                    super.onDone();
+                    leave(IndexedSubscriber.this);
+                }
+            };
+            IndexedSubscriber(Criteria<K> criteria, Function encoder) {
+                this.criteria = criteria;
+                this.encoder = encoder;
+            }
+            void enter() {
+                if (joined.compareAndSet(false, true)) {
+                    join(this);
+                }
+            }
+            void stop() {
+                if (out.enumerator != null) {
+                    out.stop();
+                }
+            }
+        }
+    }
+
+    /** Elements under one of some keys and, optionally, with a value strictly between two bounds. */
+    public static final class Criteria<K> {
+        final List<K> keys;
+        final boolean ranged;
+        final double low;
+        final double high;
+        private Criteria(List<K> keys, boolean ranged, double low, double high) {
+            this.keys = keys;
+            this.ranged = ranged;
+            this.low = low;
+            this.high = high;
+        }
+        public static <K> Criteria<K> keys(K... keys) {
+            return new Criteria<K>(new ArrayList<K>(new LinkedHashSet<K>(Arrays.asList(keys))), false, 0.0, 0.0);
+        }
+        /** Either bound may be infinite, but an empty range is refused. */
+        public Criteria<K> between(double low, double high) {
+            if (!(low < high)) {
+                throw new IllegalArgumentException("Empty range (" + low + ", " + high + ")");
+            }
+            return new Criteria<K>(keys, true, low, high);
+        }
+    }
+    static final class Range {
+        final double low;
+        final double high;
+        Range(double low, double high) {
+            this.low = low;
+            this.high = high;
+        }
+        @Override
+        public boolean equals(Object o) {
+            for (Range r : F.caseClassOf(Range.class, o)) {
+                return r.low == low && r.high == high;
+            }
+            return false;
+        }
+        @Override
+        public int hashCode() {
+            long bits = Double.doubleToLongBits(low) * 31L + Double.doubleToLongBits(high);
+            return (int) (bits ^ (bits >>> 32));
+        }
+    }
+
+    /** A static centered interval tree over open ranges. */
+    static final class IntervalTree<V> {
+        private final Node<V> root;
+        IntervalTree(Map<Range, V> ranges) {
+            List<Map.Entry<Range, V>> entries = new ArrayList<Map.Entry<Range, V>>();
+            for (Map.Entry<Range, V> entry : ranges.entrySet()) {
+                if (entry.getKey().low < entry.getKey().high) {
+                    entries.add(entry);
+                }
+            }
+            Collections.sort(entries, new Comparator<Map.Entry<Range, V>>() {
+                @Override
+                public int compare(Map.Entry<Range, V> a, Map.Entry<Range, V> b) {
+                    return Double.compare(a.getKey().low, b.getKey().low);
+                }
+            });
+            root = build(entries);
+        }
+        private static <V> Node<V> build(List<Map.Entry<Range, V>> entries) {
+            if (entries.isEmpty()) {
+                return null;
+            }
+            Map.Entry<Range, V> pivot = entries.get(entries.size() / 2);
+            double center = pivot.getKey().low / 2 + pivot.getKey().high / 2;
+            List<Map.Entry<Range, V>> left = new ArrayList<Map.Entry<Range, V>>();
+            List<Map.Entry<Range, V>> right = new ArrayList<Map.Entry<Range, V>>();
+            List<Map.Entry<Range, V>> here = new ArrayList<Map.Entry<Range, V>>();
+            for (Map.Entry<Range, V> entry : entries) {
+                if (entry != pivot && entry.getKey().high <= center) {
+                    left.add(entry);
+                } else if (entry != pivot && entry.getKey().low >= center) {
+                    right.add(entry);
+                } else {
+                    here.add(entry);
+                }
+            }
+            Node<V> node = new Node<V>(center, here);
+            node.left = build(left);
+            node.right = build(right);
+            return node;
+        }
+        void stab(double x, List<V> into) {
+            Node<V> node = root;
+            while (node != null) {
+                if (x < node.center) {
+                    for (Map.Entry<Range, V> entry : node.byLow) {
+                        if (entry.getKey().low >= x) {
+                            break;
+                        }
+                        into.add(entry.getValue());
+                    }
+                    node = node.left;
+                } else if (x > node.center) {
+                    for (Map.Entry<Range, V> entry : node.byHigh) {
+                        if (entry.getKey().high <= x) {
+                            break;
+                        }
+                        into.add(entry.getValue());
+                    }
+                    node = node.right;
+                } else {
+                    for (Map.Entry<Range, V> entry : node.byLow) {
+                        if (entry.getKey().low < x && x < entry.getKey().high) {
+                            into.add(entry.getValue());
+                        }
+                    }
+                    return;
+                }
+            }
+        }
+        private static final class Node<V> {
+            final double center;
+            final List<Map.Entry<Range, V>> byLow;
+            final List<Map.Entry<Range, V>> byHigh;
+            Node<V> left;
+            Node<V> right;
+            Node(double center, List<Map.Entry<Range, V>> here) {
+                this.center = center;
+                this.byLow = here;
+                this.byHigh = new ArrayList<Map.Entry<Range, V>>(here);
+                Collections.sort(byHigh, new Comparator<Map.Entry<Range, V>>() {
+                    @Override
+                    public int compare(Map.Entry<Range, V> a, Map.Entry<Range, V> b) {
+                        return Double.compare(b.getKey().high, a.getKey().high);
+                    }
+                });
             }
-            enumerator.tell(PoisonPill.getInstance());
-            internalIteratee.tell(PoisonPill.getInstance());
         }
     }
     private static Props forwarderActorProps(final Forward f) {
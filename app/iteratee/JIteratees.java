@@ -1,16 +1,26 @@
 package iteratee;
 
 import akka.actor.ActorRef;
+import akka.util.Duration;
 import org.codehaus.jackson.JsonNode;
-import play.libs.Comet;
 import play.libs.Json;
 import play.mvc.Controller;
 import play.mvc.Http;
 import play.mvc.Results;
 import play.mvc.WebSocket;
 
+import javax.xml.bind.DatatypeConverter;
 import java.io.File;
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static iteratee.F.*;
 import static iteratee.Iteratees.*;
@@ -23,24 +33,46 @@ public class JIteratees {
         return file(Enumerator.fromFile(file), "application/octet-stream");
     }
 
+    /** Serves a file at no more than {@code bytesPerSecond} for this connection. */
+    public static <T> Results.Status file(final File file, long bytesPerSecond) {
+        return file(Enumerator.fromFile(file).through(Enumeratee.throttleBytes(bytesPerSecond, 1L, TimeUnit.SECONDS, bytesPerSecond)), "application/octet-stream");
+    }
+
     public static <T> Results.Status file(final Enumerator<byte[]> enumerator) {
         return file(enumerator, "application/octet-stream");
     }
 
     public static <T> Results.Status file(final Enumerator<byte[]> enumerator, String contentType) {
+        return file(enumerator, contentType, Flush.DEFAULT);
+    }
+
+    public static <T> Results.Status file(final Enumerator<byte[]> enumerator, String contentType, final Flush flush) {
+        final Admission.Reservation reservation = Admission.instance().admit(flush.bytes);
+        if (reservation == null) {
+            enumerator.onDone();
+            return Admission.instance().unavailable();
+        }
         Results.Chunks<byte[]> chunks = new Results.ByteChunks() {
-            public void onReady(final Results.Chunks.Out<byte[]> out) {
-                out.onDisconnected(new play.libs.F.Callback0() {
-                    @Override
-                    public void invoke() throws Throwable {}
-                });
-                enumerator.applyOn(Iteratees.Iteratee.foreach(new Function<byte[], Unit>() {
+            public void onReady(final Results.Chunks.Out<byte[]> chunksOut) {
+                final ChunkWriter out = ChunkWriter.open(chunksOut, reservation.flush(flush), reservation);
+                if (out == null) {
+                    enumerator.onDone();
+                    return;
+                }
+                final Iteratee<byte[], Unit> iteratee = Iteratees.Iteratee.foreach(new Function<byte[], Unit>() {
                     @Override
                     public Unit apply(byte[] s) {
                         out.write(s);
                         return Unit.unit();
                     }
-                })).onRedeem(new Action<Promise<Unit>>() {
+                });
+                chunksOut.onDisconnected(new play.libs.F.Callback0() {
+                    @Override
+                    public void invoke() throws Throwable {
+                        iteratee.cancel();
+                    }
+                });
+                enumerator.applyOn(iteratee).onRedeem(new Action<Promise<Unit>>() {
                     @Override
                     public void apply(Promise<Unit> unitPromise) {
                         out.close();
@@ -67,33 +99,63 @@ public class JIteratees {
     }
 
     public static <T> Results.Status stream(final HubEnumerator<T> enumerator) {
-        return stream(enumerator, new ByteBuilder<T>() {
-            @Override
-            public byte[] build(T value) {
-                try {
-                    return value.toString().getBytes("UTF-8");
-                } catch (UnsupportedEncodingException e) {
-                    e.printStackTrace();
-                    return new byte[0];
-                }
-            }
-        });
+        return stream(enumerator, JIteratees.<T>bytes());
     }
 
     public static <T> Results.Status stream(final HubEnumerator<T> enumerator, final ByteBuilder<T> builder) {
+        return stream(enumerator, builder, Overflow.DEFAULT);
+    }
+
+    public static <T> Results.Status stream(final HubEnumerator<T> enumerator, final ByteBuilder<T> builder, final Overflow overflow) {
+        return stream(enumerator, builder, overflow, Flush.DEFAULT);
+    }
+
+    public static <T> Results.Status stream(final HubEnumerator<T> enumerator, final ByteBuilder<T> builder, final Overflow overflow, final Flush flush) {
+        return frames(enumerator, new Encoded<T, byte[]>(builder), overflow, null, null, -1L, flush, null);
+    }
+
+    /** Subscribers sharing an equal encoder all get the same byte array for a given element. */
+    private static <T> Results.Status frames(final HubEnumerator<T> enumerator, final Function<T, byte[]> encoder, final Overflow overflow,
+                                             final String contentType, final byte[] preamble, final long after, final Flush flush,
+                                             final Heartbeat heartbeat) {
+        final Admission.Reservation reservation = Admission.instance().admit(flush.bytes);
+        if (reservation == null) {
+            return Admission.instance().unavailable();
+        }
+        if (contentType != null) {
+            Controller.response().setContentType(contentType);
+        }
         Results.Chunks<byte[]> chunks = new Results.ByteChunks() {
-            public void onReady(final Results.Chunks.Out<byte[]> out) {
-                out.onDisconnected(new play.libs.F.Callback0() {
+            public void onReady(final Results.Chunks.Out<byte[]> chunksOut) {
+                final ChunkWriter out = ChunkWriter.open(chunksOut, reservation.flush(flush), reservation);
+                if (out == null) {
+                    return;
+                }
+                if (preamble != null) {
+                    out.write(preamble);
+                    out.flush();
+                }
+                out.heartbeat(heartbeat);
+                final Iteratee<byte[], Unit> iteratee = Iteratees.Iteratee.foreach(new Function<byte[], Unit>() {
                     @Override
-                    public void invoke() throws Throwable {}
+                    public Unit apply(byte[] frame) {
+                        out.write(frame);
+                        return Unit.unit();
+                    }
                 });
-                enumerator.add(Iteratees.Iteratee.foreach(new Function<T, Unit>() {
+                chunksOut.onDisconnected(new play.libs.F.Callback0() {
                     @Override
-                    public Unit apply(T s) {
-                        out.write(builder.build(s));
-                        return Unit.unit();
+                    public void invoke() throws Throwable {
+                        iteratee.cancel();
+                    }
+                });
+                iteratee.getAsyncResult().onRedeem(new Action<Promise<Unit>>() {
+                    @Override
+                    public void apply(Promise<Unit> unitPromise) {
+                        out.close();
                     }
-                }));
+                });
+                enumerator.add(iteratee, reservation.degraded ? Overflow.conflate() : overflow, encoder, after);
             }
         };
         Controller.response().setHeader("Content-Length", "-1");
@@ -101,19 +163,49 @@ public class JIteratees {
     }
 
     public static <T> Results.Status stream(final Enumerator<T> enumerator, final ByteBuilder<T> builder) {
+        return stream(enumerator, builder, Flush.DEFAULT);
+    }
+
+    public static <T> Results.Status stream(final Enumerator<T> enumerator, final ByteBuilder<T> builder, final Flush flush) {
+        return stream(enumerator, builder, null, null, flush, null);
+    }
+
+    private static <T> Results.Status stream(final Enumerator<T> enumerator, final ByteBuilder<T> builder, final String contentType,
+                                             final byte[] preamble, final Flush flush, final Heartbeat heartbeat) {
+        final Admission.Reservation reservation = Admission.instance().admit(flush.bytes);
+        if (reservation == null) {
+            enumerator.onDone();
+            return Admission.instance().unavailable();
+        }
+        if (contentType != null) {
+            Controller.response().setContentType(contentType);
+        }
         Results.Chunks<byte[]> chunks = new Results.ByteChunks() {
-            public void onReady(final Results.Chunks.Out<byte[]> out) {
-                out.onDisconnected(new play.libs.F.Callback0() {
-                    @Override
-                    public void invoke() throws Throwable {}
-                });
-                enumerator.applyOn(Iteratees.Iteratee.foreach(new Function<T, Unit>() {
+            public void onReady(final Results.Chunks.Out<byte[]> chunksOut) {
+                final ChunkWriter out = ChunkWriter.open(chunksOut, reservation.flush(flush), reservation);
+                if (out == null) {
+                    enumerator.onDone();
+                    return;
+                }
+                if (preamble != null) {
+                    out.write(preamble);
+                    out.flush();
+                }
+                out.heartbeat(heartbeat);
+                final Iteratee<T, Unit> iteratee = Iteratees.Iteratee.foreach(new Function<T, Unit>() {
                     @Override
                     public Unit apply(T s) {
                         out.write(builder.build(s));
                         return Unit.unit();
                     }
-                })).onRedeem(new Action<Promise<Unit>>() {
+                });
+                chunksOut.onDisconnected(new play.libs.F.Callback0() {
+                    @Override
+                    public void invoke() throws Throwable {
+                        iteratee.cancel();
+                    }
+                });
+                enumerator.applyOn(iteratee).onRedeem(new Action<Promise<Unit>>() {
                     @Override
                     public void apply(Promise<Unit> unitPromise) {
                         out.close();
@@ -125,6 +217,337 @@ public class JIteratees {
         return Controller.ok(chunks);
     }
 
+    /**
+     * When what is written to a chunked response goes out, right away or gathered
+     * into one chunk for up to {@code bytes} and the delay.
+     */
+    public static final class Flush {
+        public static final Flush DEFAULT = within(2L, TimeUnit.MILLISECONDS, 16 * 1024);
+        final long delay;
+        final int bytes;
+        private Flush(long delay, int bytes) {
+            this.delay = delay;
+            this.bytes = bytes;
+        }
+        public static Flush immediately() {
+            return new Flush(0L, 0);
+        }
+        public static Flush within(long delay, TimeUnit unit, int bytes) {
+            return new Flush(unit.toNanos(delay), bytes);
+        }
+        void schedule(Runnable flusher) {
+            timer().schedule(flusher, delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /** Coalesces writes to a chunked response according to a {@link Flush}. */
+    private static final class ChunkWriter {
+        private final Results.Chunks.Out<byte[]> out;
+        private final Flush flush;
+        private final Admission.Reservation reservation;
+        private final Runnable flusher = new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+        private byte[] buffer;
+        private int size = 0;
+        private boolean scheduled = false;
+        private boolean closed = false;
+        private boolean active = false;
+        private long idleSince;
+        private Heartbeat heartbeat;
+        private ChunkWriter(Results.Chunks.Out<byte[]> out, Flush flush, Admission.Reservation reservation) {
+            this.out = out;
+            this.flush = flush;
+            this.reservation = reservation;
+        }
+        /**
+         * @return the writer of a response rendered in time, or null, the response
+         * closed, if its slot was already taken back.
+         */
+        static ChunkWriter open(Results.Chunks.Out<byte[]> out, Flush flush, Admission.Reservation reservation) {
+            ChunkWriter writer = new ChunkWriter(out, flush, reservation);
+            if (!reservation.claim(writer)) {
+                out.close();
+                return null;
+            }
+            return writer;
+        }
+        synchronized void write(byte[] bytes) {
+            if (closed) {
+                return;
+            }
+            active = true;
+            if (size + bytes.length > flush.bytes) {
+                // the buffer never outgrows what admission reserved for it
+                send();
+            }
+            if (bytes.length >= flush.bytes) {
+                out.write(bytes);
+                return;
+            }
+            if (buffer == null) {
+                buffer = new byte[flush.bytes];
+            }
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+            Admission.instance().buffered(bytes.length);
+            if (size >= flush.bytes) {
+                send();
+            } else if (!scheduled) {
+                scheduled = true;
+                flush.schedule(flusher);
+            }
+        }
+        synchronized void flush() {
+            scheduled = false;
+            send();
+        }
+        void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                send();
+                closed = true;
+                out.close();
+            }
+            Heartbeats.writers.remove(this);
+            reservation.release();
+        }
+        void heartbeat(Heartbeat heartbeat) {
+            if (heartbeat != null) {
+                synchronized (this) {
+                    this.heartbeat = heartbeat;
+                    idleSince = System.nanoTime();
+                }
+                Heartbeats.register(this);
+            }
+        }
+        /** Writes the heartbeat if nothing was written since {@code idle}. */
+        synchronized void sweep(long now) {
+            if (closed) {
+                Heartbeats.writers.remove(this);
+                return;
+            }
+            if (active || size > 0) {
+                active = false;
+                idleSince = now;
+            } else if (now - idleSince >= heartbeat.idle) {
+                out.write(heartbeat.frame);
+                idleSince = now;
+            }
+        }
+        synchronized int pending() {
+            return size;
+        }
+        private void send() {
+            if (size > 0) {
+                out.write(Arrays.copyOf(buffer, size));
+                Admission.instance().buffered(-size);
+                size = 0;
+            }
+        }
+    }
+
+    /**
+     * Caps how many streamed responses and websockets are open at once, and the
+     * bytes their coalescing buffers may hold. A stream admitted past the byte
+     * budget is degraded: it writes through unbuffered and, reading a hub, keeps
+     * only the latest element. Pending bytes are only reported, since Play
+     * doesn't tell how much waits in its channels. A response admitted but not
+     * rendered within {@code unclaimed} gives its slot back.
+     */
+    public static final class Admission {
+        private static final Admission instance = new Admission();
+        private static final long SWEEP = TimeUnit.SECONDS.toNanos(1L);
+        private final Set<Reservation> open = Collections.newSetFromMap(new ConcurrentHashMap<Reservation, Boolean>());
+        private final AtomicLong connections = new AtomicLong(0L);
+        private final AtomicLong bytes = new AtomicLong(0L);
+        private final AtomicLong reserved = new AtomicLong(0L);
+        private final AtomicLong admitted = new AtomicLong(0L);
+        private final AtomicLong degraded = new AtomicLong(0L);
+        private final AtomicLong rejected = new AtomicLong(0L);
+        private volatile long maxConnections = Long.MAX_VALUE;
+        private volatile long maxBytes = Long.MAX_VALUE;
+        private volatile long retryAfter = 5L;
+        private volatile long unclaimed = TimeUnit.SECONDS.toNanos(30L);
+        private final AtomicLong nextSweep = new AtomicLong(System.nanoTime());
+        private Admission() {}
+        public static Admission instance() {
+            return instance;
+        }
+        public Admission limit(long connections) {
+            this.maxConnections = connections;
+            return this;
+        }
+        public Admission budget(long bytes) {
+            this.maxBytes = bytes;
+            return this;
+        }
+        public Admission retryAfter(long delay, TimeUnit unit) {
+            this.retryAfter = Math.max(1L, unit.toSeconds(delay));
+            return this;
+        }
+        public Admission unclaimed(long delay, TimeUnit unit) {
+            this.unclaimed = unit.toNanos(delay);
+            nextSweep.set(System.nanoTime());
+            return this;
+        }
+        /**
+         * @return the connections and the reserved buffer bytes against their
+         * limits, the pending bytes, and how many connections were admitted,
+         * degraded and rejected.
+         */
+        public Map<String, Long> counters() {
+            expire(System.nanoTime());
+            long largest = 0L;
+            for (Reservation reservation : open) {
+                ChunkWriter writer = reservation.writer;
+                if (writer != null) {
+                    largest = Math.max(largest, writer.pending());
+                }
+            }
+            Map<String, Long> counters = new LinkedHashMap<String, Long>();
+            counters.put("connections", connections.get());
+            counters.put("maxConnections", maxConnections);
+            counters.put("reserved", reserved.get());
+            counters.put("maxBytes", maxBytes);
+            counters.put("bytes", bytes.get());
+            counters.put("largestConnection", largest);
+            counters.put("admitted", admitted.get());
+            counters.put("degraded", degraded.get());
+            counters.put("rejected", rejected.get());
+            return counters;
+        }
+        Reservation admit() {
+            return admit(0);
+        }
+        /**
+         * @return the slot of the new connection with {@code buffer} bytes, or a
+         * degraded one without if they are over budget, to release once it
+         * closes, or null if there is no slot left.
+         */
+        Reservation admit(int buffer) {
+            if (!acquire() && !(expire(System.nanoTime()) > 0 && acquire())) {
+                rejected.incrementAndGet();
+                return null;
+            }
+            admitted.incrementAndGet();
+            int held = Math.max(0, buffer);
+            boolean degrade = reserved.addAndGet(held) > maxBytes;
+            if (degrade) {
+                reserved.addAndGet(-held);
+                degraded.incrementAndGet();
+                held = 0;
+            }
+            Reservation reservation = new Reservation(held, degrade);
+            open.add(reservation);
+            return reservation;
+        }
+        private boolean acquire() {
+            if (connections.incrementAndGet() > maxConnections) {
+                connections.decrementAndGet();
+                return false;
+            }
+            return true;
+        }
+        /** Takes back, at most once a second, the slots of responses never rendered. */
+        private int expire(long now) {
+            long next = nextSweep.get();
+            if (now - next < 0L || !nextSweep.compareAndSet(next, now + Math.min(unclaimed, SWEEP))) {
+                return 0;
+            }
+            int expired = 0;
+            for (Reservation reservation : open) {
+                if (reservation.expire(now)) {
+                    expired++;
+                }
+            }
+            return expired;
+        }
+        Results.Status unavailable() {
+            Controller.response().setHeader("Retry-After", Long.toString(retryAfter));
+            return Controller.status(Http.Status.SERVICE_UNAVAILABLE, "Too many open streams, retry later");
+        }
+        void buffered(long delta) {
+            bytes.addAndGet(delta);
+        }
+        final class Reservation {
+            private final AtomicBoolean released = new AtomicBoolean(false);
+            private final long since = System.nanoTime();
+            private final int buffer;
+            final boolean degraded;
+            private boolean claimed = false;
+            volatile ChunkWriter writer;
+            private Reservation(int buffer, boolean degraded) {
+                this.buffer = buffer;
+                this.degraded = degraded;
+            }
+            /** @return how the stream holding this reservation may buffer. */
+            Flush flush(Flush flush) {
+                return degraded ? Flush.immediately() : flush;
+            }
+            /** @return false if the slot was taken back before the response was rendered. */
+            synchronized boolean claim(ChunkWriter writer) {
+                if (released.get()) {
+                    return false;
+                }
+                claimed = true;
+                this.writer = writer;
+                return true;
+            }
+            synchronized boolean expire(long now) {
+                if (claimed || released.get() || now - since < unclaimed) {
+                    return false;
+                }
+                release();
+                return true;
+            }
+            void release() {
+                if (released.compareAndSet(false, true)) {
+                    open.remove(this);
+                    connections.decrementAndGet();
+                    reserved.addAndGet(-buffer);
+                }
+            }
+        }
+    }
+
+    /** Written to a streamed response idle for {@code idle}, so that proxies don't cut it. */
+    private static final class Heartbeat {
+        static final long DEFAULT_IDLE = TimeUnit.SECONDS.toNanos(15L);
+        final byte[] frame;
+        final long idle;
+        Heartbeat(byte[] frame, long idle) {
+            this.frame = frame;
+            this.idle = idle;
+        }
+    }
+
+    /** A single timer writing the heartbeats of all the streamed responses. */
+    private static final class Heartbeats {
+        private static final Duration SWEEP = Duration.apply(1L, TimeUnit.SECONDS);
+        static final Set<ChunkWriter> writers = Collections.newSetFromMap(new ConcurrentHashMap<ChunkWriter, Boolean>());
+        private static final AtomicBoolean started = new AtomicBoolean(false);
+        static void register(ChunkWriter writer) {
+            writers.add(writer);
+            if (started.compareAndSet(false, true)) {
+                system().scheduler().schedule(SWEEP, SWEEP, new Runnable() {
+                    @Override
+                    public void run() {
+                        long now = System.nanoTime();
+                        for (ChunkWriter writer : writers) {
+                            writer.sweep(now);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
     public static interface ByteBuilder<T> extends Builder<T, byte[]> {
         public byte[] build(T value);
     }
@@ -136,6 +559,10 @@ public class JIteratees {
         public T build(String value);
     }
 
+    public static interface BuilderFromBytes<T> extends Builder<byte[], T>{
+        public T build(byte[] value);
+    }
+
     public static interface Builder<I, O> {
         public O build(I value);
     }
@@ -145,53 +572,318 @@ public class JIteratees {
         public T build(T value) {
             return value;
         }
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Identity;
+        }
+        @Override
+        public int hashCode() {
+            return Identity.class.hashCode();
+        }
     }
 
-    public static <T> Results.Status eventSource(final Enumerator<T> enumerator, final StrBuilder<T> builder) {
-        Results.Chunks<String> chunks = new Results.StringChunks() {
-            public void onReady(final Results.Chunks.Out<String> out) {
-                out.onDisconnected(new play.libs.F.Callback0() {
-                    @Override
-                    public void invoke() throws Throwable {}
-                });
-                enumerator.applyOn(Iteratee.foreach(new Function<T, Unit>() {
-                    @Override
-                    public Unit apply(T s) {
-                        out.write("data: " + builder.build(s) + "\n\n");
-                        return Unit.unit();
+    private static final ByteBuilder<Object> BYTES = new ByteBuilder<Object>() {
+        @Override
+        public byte[] build(Object value) {
+            return utf8(value.toString());
+        }
+    };
+
+    private static final StrBuilder<Object> TEXT = new StrBuilder<Object>() {
+        @Override
+        public String build(Object value) {
+            if (value instanceof JsonNode) {
+                return Json.stringify((JsonNode) value);
+            } else {
+                return value.toString();
+            }
+        }
+    };
+
+    private static <T> ByteBuilder<T> bytes() {
+        return (ByteBuilder<T>) (ByteBuilder) BYTES;
+    }
+
+    private static <T> StrBuilder<T> text() {
+        return (StrBuilder<T>) (StrBuilder) TEXT;
+    }
+
+    private static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Equal when wrapping the same builder, so that connections built from it share frames. */
+    private static class Encoded<I, O> implements Function<I, O> {
+        final Builder<I, O> builder;
+        Encoded(Builder<I, O> builder) {
+            this.builder = builder;
+        }
+        @Override
+        public O apply(I value) {
+            return builder.build(value);
+        }
+        @Override
+        public boolean equals(Object o) {
+            return o != null && o.getClass() == getClass() && ((Encoded) o).builder.equals(builder);
+        }
+        @Override
+        public int hashCode() {
+            return builder.hashCode();
+        }
+    }
+
+    /**
+     * How values are written as server-sent events, with an optional name and
+     * retry delay. Events read from a hub carry an id clients resume from.
+     */
+    public static final class Events<T> {
+        final StrBuilder<T> data;
+        final StrBuilder<T> name;
+        final long retry;
+        final long heartbeat;
+        private Events(StrBuilder<T> data, StrBuilder<T> name, long retry, long heartbeat) {
+            this.data = data;
+            this.name = name;
+            this.retry = retry;
+            this.heartbeat = heartbeat;
+        }
+        public static <T> Events<T> data(StrBuilder<T> data) {
+            return new Events<T>(data, null, -1L, Heartbeat.DEFAULT_IDLE);
+        }
+        /** Leaves the event unnamed when {@code name} gives null. */
+        public Events<T> named(StrBuilder<T> name) {
+            return new Events<T>(data, name, retry, heartbeat);
+        }
+        public Events<T> retry(long delay, TimeUnit unit) {
+            return new Events<T>(data, name, unit.toMillis(delay), heartbeat);
+        }
+        /** Sends a comment to clients idle for {@code idle}, or never when it is 0. */
+        public Events<T> heartbeat(long idle, TimeUnit unit) {
+            return new Events<T>(data, name, retry, unit.toNanos(idle));
+        }
+        byte[] preamble() {
+            return retry < 0L ? null : new EventWriter().field("retry", Long.toString(retry)).end();
+        }
+        Heartbeat heartbeat() {
+            return heartbeat <= 0L ? null : new Heartbeat(SSE_KEEPALIVE, heartbeat);
+        }
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Events)) {
+                return false;
+            }
+            Events other = (Events) o;
+            return data.equals(other.data) && (name == null ? other.name == null : name.equals(other.name));
+        }
+        @Override
+        public int hashCode() {
+            return data.hashCode() * 31 + (name == null ? 0 : name.hashCode());
+        }
+    }
+
+    /** Identifies the events read from a hub as {@code epoch-sequence}. */
+    static final class EventSourceFrame<T> extends HubEnumerator.SequencedEncoder<T, byte[]> {
+        final Events<T> events;
+        final String epoch;
+        EventSourceFrame(Events<T> events, String epoch) {
+            this.events = events;
+            this.epoch = epoch;
+        }
+        @Override
+        public byte[] apply(long sequence, T value) {
+            EventWriter writer = new EventWriter();
+            if (sequence >= 0L && epoch != null) {
+                writer.field("id", epoch + '-' + sequence);
+            }
+            if (events.name != null) {
+                String name = events.name.build(value);
+                if (name != null) {
+                    writer.field("event", name);
+                }
+            }
+            return writer.field("data", events.data.build(value)).end();
+        }
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof EventSourceFrame)) {
+                return false;
+            }
+            EventSourceFrame other = (EventSourceFrame) o;
+            return other.events.equals(events) && (epoch == null ? other.epoch == null : epoch.equals(other.epoch));
+        }
+        @Override
+        public int hashCode() {
+            return events.hashCode();
+        }
+    }
+
+    /**
+     * Writes the fields of one server-sent event straight to UTF-8 bytes, one
+     * field per line of the value.
+     */
+    static final class EventWriter {
+        private byte[] bytes = new byte[256];
+        private int size = 0;
+        EventWriter field(String name, String value) {
+            int start = 0;
+            int length = value.length();
+            for (int i = 0; i <= length; i++) {
+                char c = i < length ? value.charAt(i) : '\n';
+                if (c == '\n' || c == '\r') {
+                    write(name, 0, name.length());
+                    write(": ", 0, 2);
+                    write(value, start, i);
+                    write("\n", 0, 1);
+                    if (c == '\r' && i + 1 < length && value.charAt(i + 1) == '\n') {
+                        i++;
                     }
-                })).onRedeem(new Action<Promise<Unit>>() {
-                    @Override
-                    public void apply(Promise<Unit> unitPromise) {
-                        out.close();
+                    start = i + 1;
+                }
+            }
+            return this;
+        }
+        byte[] end() {
+            write("\n", 0, 1);
+            return Arrays.copyOf(bytes, size);
+        }
+        private void write(String value, int from, int to) {
+            int needed = size + (to - from) * 3;
+            if (needed > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(needed, bytes.length * 2));
+            }
+            for (int i = from; i < to; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    bytes[size++] = (byte) c;
+                } else if (c < 0x800) {
+                    bytes[size++] = (byte) (0xc0 | (c >> 6));
+                    bytes[size++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int code = Character.toCodePoint(c, value.charAt(++i));
+                    bytes[size++] = (byte) (0xf0 | (code >> 18));
+                    bytes[size++] = (byte) (0x80 | ((code >> 12) & 0x3f));
+                    bytes[size++] = (byte) (0x80 | ((code >> 6) & 0x3f));
+                    bytes[size++] = (byte) (0x80 | (code & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    bytes[size++] = (byte) '?';
+                } else {
+                    bytes[size++] = (byte) (0xe0 | (c >> 12));
+                    bytes[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    bytes[size++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+        }
+    }
+
+    private static final String COMET = "text/html; charset=utf-8";
+    private static final byte[] COMET_PREAMBLE = utf8("<html><body>" + new String(new char[5 * 1024]).replace('\0', ' '));
+
+    private static final byte[] SSE_KEEPALIVE = utf8(":\n\n");
+
+    private static final Heartbeat COMET_HEARTBEAT = new Heartbeat(utf8(" "), Heartbeat.DEFAULT_IDLE);
+
+    static final class CometFrame<T> implements Function<T, byte[]> {
+        final String callback;
+        final StrBuilder<T> message;
+        CometFrame(String callback, StrBuilder<T> message) {
+            this.callback = callback;
+            this.message = message;
+        }
+        @Override
+        public byte[] apply(T value) {
+            return utf8("<script type=\"text/javascript\">" + callback + "('" + escapeJavaScript(message.build(value)) + "');</script>");
+        }
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CometFrame && ((CometFrame) o).callback.equals(callback) && ((CometFrame) o).message.equals(message);
+        }
+        @Override
+        public int hashCode() {
+            return callback.hashCode() * 31 + message.hashCode();
+        }
+    }
+
+    static String escapeJavaScript(String value) {
+        StringBuilder builder = new StringBuilder(value.length() + 16);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\'': builder.append("\\'"); break;
+                case '"': builder.append("\\\""); break;
+                case '\\': builder.append("\\\\"); break;
+                case '/': builder.append("\\/"); break;
+                case '\n': builder.append("\\n"); break;
+                case '\r': builder.append("\\r"); break;
+                case '\t': builder.append("\\t"); break;
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
                     }
-                });
             }
-        };
-        Controller.response().setContentType(EVENTSOURCE);
-        Controller.response().setHeader("Content-Length", "-1");
-        return Controller.ok(chunks);
+        }
+        return builder.toString();
+    }
+
+    public static <T> Results.Status eventSource(final Enumerator<T> enumerator, final StrBuilder<T> builder) {
+        return eventSource(enumerator, Events.data(builder));
+    }
+
+    public static <T> Results.Status eventSource(final Enumerator<T> enumerator, final Events<T> events) {
+        return eventSource(enumerator, events, Flush.DEFAULT);
+    }
+
+    public static <T> Results.Status eventSource(final Enumerator<T> enumerator, final Events<T> events, final Flush flush) {
+        final EventSourceFrame<T> frame = new EventSourceFrame<T>(events, null);
+        return stream(enumerator, new ByteBuilder<T>() {
+            @Override
+            public byte[] build(T value) {
+                return frame.apply(value);
+            }
+        }, EVENTSOURCE, events.preamble(), flush, events.heartbeat());
     }
 
     public static <T> Results.Status eventSource(final HubEnumerator<T> enumerator, final StrBuilder<T> builder) {
-        Results.Chunks<String> chunks = new Results.StringChunks() {
-            public void onReady(final Results.Chunks.Out<String> out) {
-                out.onDisconnected(new play.libs.F.Callback0() {
-                    @Override
-                    public void invoke() throws Throwable {}
-                });
-                enumerator.add(Iteratee.foreach(new Function<T, Unit>() {
-                    @Override
-                    public Unit apply(T s) {
-                        out.write("data: " + builder.build(s) + "\n\n");
-                        return Unit.unit();
-                    }
-                }));
+        return eventSource(enumerator, builder, Overflow.DEFAULT);
+    }
+
+    public static <T> Results.Status eventSource(final HubEnumerator<T> enumerator, final StrBuilder<T> builder, final Overflow overflow) {
+        return eventSource(enumerator, Events.data(builder), overflow);
+    }
+
+    /**
+     * A client sending the {@code Last-Event-ID} of this hub first gets what it
+     * missed, as far as the ring still holds it.
+     */
+    public static <T> Results.Status eventSource(final HubEnumerator<T> enumerator, final Events<T> events, final Overflow overflow) {
+        return eventSource(enumerator, events, overflow, Flush.DEFAULT);
+    }
+
+    public static <T> Results.Status eventSource(final HubEnumerator<T> enumerator, final Events<T> events, final Overflow overflow, final Flush flush) {
+        long after = lastEventId(enumerator.epoch());
+        return frames(enumerator, new EventSourceFrame<T>(events, enumerator.epoch()), overflow, EVENTSOURCE, events.preamble(), after, flush, events.heartbeat());
+    }
+
+    private static long lastEventId(String epoch) {
+        return sequenceOf(Controller.request().getHeader("Last-Event-ID"), epoch);
+    }
+
+    /** @return the sequence of an event id from {@code epoch}, or -1. */
+    static long sequenceOf(String id, String epoch) {
+        String prefix = epoch + '-';
+        if (id != null && id.trim().startsWith(prefix)) {
+            try {
+                return Long.parseLong(id.trim().substring(prefix.length()));
+            } catch (NumberFormatException e) {
+                // not one of ours
             }
-        };
-        Controller.response().setContentType(EVENTSOURCE);
-        Controller.response().setHeader("Content-Length", "-1");
-        return Controller.ok(chunks);
+        }
+        return -1L;
     }
 
     public static <T> Results.Status eventSource(final Enumerator<T> enumerator) {
@@ -208,66 +900,48 @@ public class JIteratees {
     }
 
     public static <T> Results.Status eventSource(final HubEnumerator<T> enumerator) {
-        return eventSource(enumerator, new StrBuilder<T>() {
-            @Override
-            public String build(T value) {
-                if (value instanceof JsonNode) {
-                    return Json.stringify((JsonNode) value);
-                } else {
-                    return /**org.apache.commons.lang3.StringEscapeUtils.escapeEcmaScript(**/value.toString();
-                }
-            }
-        });
+        return eventSource(enumerator, Overflow.DEFAULT);
+    }
+
+    public static <T> Results.Status eventSource(final HubEnumerator<T> enumerator, final Overflow overflow) {
+        return eventSource(enumerator, JIteratees.<T>text(), overflow);
     }
 
     public static Enumeratee<Object, String> eventSource = Enumeratee.map(new Function<Object, String>() {
         @Override
         public String apply(Object s) {
-            if (s instanceof JsonNode) {
-                return "data: " + Json.stringify((JsonNode) s) + "\n\n";
-            } else {
-                return "data: " + /**org.apache.commons.lang3.StringEscapeUtils.escapeEcmaScript(*/s.toString() + "\n\n";
+            try {
+                return new String(new EventWriter().field("data", TEXT.build(s)).end(), "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
             }
         }
     });
 
     public static <T> Results.Status comet(String callback, final HubEnumerator<T> enumerator, final StrBuilder<T> builder) {
-        Comet comet = new Comet(callback) {
-            public void onConnected() {
-                enumerator.add(Iteratees.Iteratee.foreach(new Function<T, Unit>() {
-                    @Override
-                    public Unit apply(T s) {
-                        sendMessage(builder.build(s));
-                        return Unit.unit();
-                    }
-                }));
-            }
-        };
-        comet.onDisconnected(new play.libs.F.Callback0() {
-            @Override
-            public void invoke() throws Throwable {}
-        });
-        return Controller.ok(comet);
+        return comet(callback, enumerator, builder, Overflow.DEFAULT);
+    }
+
+    public static <T> Results.Status comet(String callback, final HubEnumerator<T> enumerator, final StrBuilder<T> builder, final Overflow overflow) {
+        return comet(callback, enumerator, builder, overflow, Flush.DEFAULT);
+    }
+
+    public static <T> Results.Status comet(String callback, final HubEnumerator<T> enumerator, final StrBuilder<T> builder, final Overflow overflow, final Flush flush) {
+        return frames(enumerator, new CometFrame<T>(callback, builder), overflow, COMET, COMET_PREAMBLE, -1L, flush, COMET_HEARTBEAT);
     }
 
     public static <T> Results.Status comet(String callback, final Enumerator<T> enumerator, final StrBuilder<T> builder) {
-        Comet comet = new Comet(callback) {
-            public void onConnected() {
-                enumerator.applyOn(Iteratees.Iteratee.foreach(new Function<T, Unit>() {
-                    @Override
-                    public Unit apply(T s) {
-                        sendMessage(builder.build(s));
-                        return Unit.unit();
-                    }
-                })).onRedeem(new Action<Promise<Unit>>() {
-                    @Override
-                    public void apply(Promise<Unit> unitPromise) {
-                        close();
-                    }
-                });
+        return comet(callback, enumerator, builder, Flush.DEFAULT);
+    }
+
+    public static <T> Results.Status comet(String callback, final Enumerator<T> enumerator, final StrBuilder<T> builder, final Flush flush) {
+        final CometFrame<T> frame = new CometFrame<T>(callback, builder);
+        return stream(enumerator, new ByteBuilder<T>() {
+            @Override
+            public byte[] build(T value) {
+                return frame.apply(value);
             }
-        };
-        return Controller.ok(comet);
+        }, COMET, COMET_PREAMBLE, flush, COMET_HEARTBEAT);
     }
 
     public static <T> Results.Status comet(String callback, final Enumerator<T> enumerator) {
@@ -284,16 +958,7 @@ public class JIteratees {
     }
 
     public static <T> Results.Status comet(String callback, final HubEnumerator<T> enumerator) {
-        return comet(callback, enumerator, new StrBuilder<T>() {
-            @Override
-            public String build(T value) {
-                if (value instanceof JsonNode) {
-                    return Json.stringify((JsonNode) value);
-                } else {
-                    return value.toString();
-                }
-            }
-        });
+        return comet(callback, enumerator, JIteratees.<T>text());
     }
 
     public static <T> WebSocket<T> websocket(final Class<T> clazz, final Iteratee<T, Unit> inIteratee, final Enumerator<T> outEnumerator) {
@@ -320,12 +985,98 @@ public class JIteratees {
         return websocket(JsonNode.class, JsonNode.class, inIteratee, new Identity<JsonNode>(), outEnumerator, new Identity<JsonNode>());
     }
 
+    public static WebSocket<String> websocketBase64(final Iteratee<byte[], Unit> inIteratee, final Enumerator<byte[]> outEnumerator) {
+        return websocketBase64(byte[].class, inIteratee, BYTES_IDENTITY, outEnumerator, BYTES_IDENTITY);
+    }
+
+    public static WebSocket<String> websocketBase64(final Iteratee<byte[], Unit> inIteratee, final HubEnumerator<byte[]> outEnumerator) {
+        return websocketBase64(byte[].class, inIteratee, BYTES_IDENTITY, outEnumerator, BYTES_IDENTITY);
+    }
+
+    /**
+     * Java websockets in Play 2.0 only carry text frames, so the bytes travel
+     * base64 encoded: a third larger on the wire, plus encoding both ways.
+     */
+    public static <T> WebSocket<String> websocketBase64(final Class<T> clazz,
+            final Iteratee<T, Unit> inIteratee, final BuilderFromBytes<T> decoder,
+            final Enumerator<T> outEnumerator, final ByteBuilder<T> encoder) {
+        return websocket(String.class, clazz, inIteratee, new Base64Decoder<T>(decoder), outEnumerator, new Base64Encoder<T>(encoder));
+    }
+
+    public static <T> WebSocket<String> websocketBase64(final Class<T> clazz,
+            final Iteratee<T, Unit> inIteratee, final BuilderFromBytes<T> decoder,
+            final HubEnumerator<T> outEnumerator, final ByteBuilder<T> encoder) {
+        return websocketBase64(clazz, inIteratee, decoder, outEnumerator, encoder, Overflow.DEFAULT);
+    }
+
+    public static <T> WebSocket<String> websocketBase64(final Class<T> clazz,
+            final Iteratee<T, Unit> inIteratee, final BuilderFromBytes<T> decoder,
+            final HubEnumerator<T> outEnumerator, final ByteBuilder<T> encoder, final Overflow overflow) {
+        return websocket(String.class, clazz, inIteratee, new Base64Decoder<T>(decoder), outEnumerator, new Base64Encoder<T>(encoder), overflow);
+    }
+
+    private static final BytesIdentity BYTES_IDENTITY = new BytesIdentity();
+
+    private static final class BytesIdentity implements ByteBuilder<byte[]>, BuilderFromBytes<byte[]> {
+        @Override
+        public byte[] build(byte[] value) {
+            return value;
+        }
+    }
+
+    private static final class Base64Encoder<T> implements Builder<T, String> {
+        private final ByteBuilder<T> encoder;
+        Base64Encoder(ByteBuilder<T> encoder) {
+            this.encoder = encoder;
+        }
+        @Override
+        public String build(T value) {
+            return DatatypeConverter.printBase64Binary(encoder.build(value));
+        }
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Base64Encoder && ((Base64Encoder) o).encoder.equals(encoder);
+        }
+        @Override
+        public int hashCode() {
+            return encoder.hashCode();
+        }
+    }
+
+    private static final class Base64Decoder<T> implements Builder<String, T> {
+        private final BuilderFromBytes<T> decoder;
+        Base64Decoder(BuilderFromBytes<T> decoder) {
+            this.decoder = decoder;
+        }
+        @Override
+        public T build(String value) {
+            return decoder.build(DatatypeConverter.parseBase64Binary(value));
+        }
+    }
+
+    /**
+     * Closes the socket past {@link PushEnumerator#DEFAULT_CAPACITY} pending
+     * messages, since Play keeps reading it.
+     */
+    public static final Overflow INBOUND = Overflow.disconnect(PushEnumerator.DEFAULT_CAPACITY, 0L);
+
     public static <IO, FR> WebSocket<IO> websocket(final Class<IO> clazz, final Class<FR> from,
             final Iteratee<FR, Unit> inIteratee, final Builder<IO, FR> inBuilder,
             final Enumerator<FR> outEnumerator, final Builder<FR, IO> outBuilder) {
+        return websocket(clazz, from, inIteratee, inBuilder, INBOUND, outEnumerator, outBuilder);
+    }
 
+    public static <IO, FR> WebSocket<IO> websocket(final Class<IO> clazz, final Class<FR> from,
+            final Iteratee<FR, Unit> inIteratee, final Builder<IO, FR> inBuilder, final Overflow inbound,
+            final Enumerator<FR> outEnumerator, final Builder<FR, IO> outBuilder) {
+        final int capacity = inboundCapacity(inbound);
         WebSocket<IO> ws =  new WebSocket<IO>() {
             public void onReady(final WebSocket.In<IO> in, final WebSocket.Out<IO> out) {
+                final Admission.Reservation reservation = Admission.instance().admit();
+                if (reservation == null) {
+                    out.close();
+                    return;
+                }
                 final Iteratee<FR, Unit> send = Iteratee.foreach(new Function<FR, Unit>() {
                     @Override
                     public Unit apply(FR s) {
@@ -333,30 +1084,8 @@ public class JIteratees {
                         return Unit.unit();
                     }
                 });
-                final PushEnumerator<IO> push = Enumerator.unicast(clazz);
-                in.onMessage(new play.libs.F.Callback<IO>() {
-                    public void invoke(IO event) {
-                        push.push(event);
-                    }
-                });
-                in.onClose(new play.libs.F.Callback0() {
-                    public void invoke() {
-                        push.stop();
-                    }
-                });
-                push.through(Enumeratee.map(new Function<IO, FR>() {
-                    @Override
-                    public FR apply(IO s) {
-                        return inBuilder.build(s);
-                    }
-                })).applyOn(inIteratee);
+                receive(in, out, from, inIteratee, inBuilder, inbound, capacity, send, reservation);
                 outEnumerator.applyOn(send);
-                in.onClose(new play.libs.F.Callback0() {
-                    @Override
-                    public void invoke() throws Throwable {
-
-                    }
-                });
             }
         };
         return ws;
@@ -365,36 +1094,90 @@ public class JIteratees {
     public static <IO, FR> WebSocket<IO> websocket(final Class<IO> clazz, final Class<FR> from,
             final Iteratee<FR, Unit> inIteratee, final Builder<IO, FR> inBuilder,
             final HubEnumerator<FR> outEnumerator, final Builder<FR, IO> outBuilder) {
+        return websocket(clazz, from, inIteratee, inBuilder, outEnumerator, outBuilder, Overflow.DEFAULT);
+    }
+
+    public static <IO, FR> WebSocket<IO> websocket(final Class<IO> clazz, final Class<FR> from,
+            final Iteratee<FR, Unit> inIteratee, final Builder<IO, FR> inBuilder,
+            final HubEnumerator<FR> outEnumerator, final Builder<FR, IO> outBuilder, final Overflow overflow) {
+        return websocket(clazz, from, inIteratee, inBuilder, INBOUND, outEnumerator, outBuilder, overflow);
+    }
 
+    public static <IO, FR> WebSocket<IO> websocket(final Class<IO> clazz, final Class<FR> from,
+            final Iteratee<FR, Unit> inIteratee, final Builder<IO, FR> inBuilder, final Overflow inbound,
+            final HubEnumerator<FR> outEnumerator, final Builder<FR, IO> outBuilder, final Overflow overflow) {
+        final int capacity = inboundCapacity(inbound);
         WebSocket<IO> ws = new WebSocket<IO>() {
             public void onReady(final WebSocket.In<IO> in, final WebSocket.Out<IO> out) {
-                final Iteratee<FR, Unit> send = Iteratee.foreach(new Function<FR, Unit>() {
+                final Admission.Reservation reservation = Admission.instance().admit();
+                if (reservation == null) {
+                    out.close();
+                    return;
+                }
+                final Iteratee<IO, Unit> send = Iteratee.foreach(new Function<IO, Unit>() {
                     @Override
-                    public Unit apply(FR s) {
-                        out.write(outBuilder.build(s));
+                    public Unit apply(IO s) {
+                        out.write(s);
                         return Unit.unit();
                     }
                 });
-                final PushEnumerator<IO> push = Enumerator.unicast(clazz);
-                in.onMessage(new play.libs.F.Callback<IO>() {
-                    public void invoke(IO event) {
-                        push.push(event);
-                    }
-                });
-                in.onClose(new play.libs.F.Callback0() {
-                    public void invoke() {
-                        push.stop();
-                    }
-                });
-                push.through(Enumeratee.map(new Function<IO, FR>() {
-                    @Override
-                    public FR apply(IO s) {
-                        return inBuilder.build(s);
-                    }
-                })).applyOn(inIteratee);
-                outEnumerator.add(send);
+                receive(in, out, from, inIteratee, inBuilder, inbound, capacity, send, reservation);
+                outEnumerator.add(send, overflow, new Encoded<FR, IO>(outBuilder));
             }
         };
         return ws;
     }
+
+    /** Only dropNewest and disconnect are supported, as Play keeps reading the socket. */
+    static int inboundCapacity(Overflow inbound) {
+        switch (inbound.strategy) {
+            case DROP_NEWEST:
+                return inbound.size;
+            case DISCONNECT:
+                if (inbound.behind != 0L) {
+                    throw new IllegalArgumentException("Unsupported inbound overflow " + inbound.strategy + " after a delay");
+                }
+                return inbound.size;
+            default:
+                throw new IllegalArgumentException("Unsupported inbound overflow " + inbound.strategy);
+        }
+    }
+
+    /** Buffers what a websocket receives up to {@code capacity}, then drops it or closes the socket. */
+    private static <IO, FR> void receive(final WebSocket.In<IO> in, final WebSocket.Out<IO> out, final Class<FR> from,
+                                         final Iteratee<FR, Unit> inIteratee, final Builder<IO, FR> inBuilder,
+                                         final Overflow inbound, final int capacity, final Iteratee<?, Unit> send,
+                                         final Admission.Reservation reservation) {
+        // admitted once the socket is open, so already rendered
+        reservation.claim(null);
+        final PushEnumerator<FR> push = Enumerator.unicast(from, capacity);
+        final AtomicBoolean closed = new AtomicBoolean(false);
+        final AtomicLong dropped = new AtomicLong(0L);
+        final Runnable close = new Runnable() {
+            @Override
+            public void run() {
+                if (closed.compareAndSet(false, true)) {
+                    reservation.release();
+                    push.stop();
+                    send.cancel();
+                }
+            }
+        };
+        in.onMessage(new play.libs.F.Callback<IO>() {
+            public void invoke(IO event) {
+                FR message = inBuilder.build(event);
+                if (!push.offer(message) && !closed.get()
+                        && inbound.strategy == Overflow.Strategy.DISCONNECT && dropped.incrementAndGet() > inbound.dropped) {
+                    close.run();
+                    out.close();
+                }
+            }
+        });
+        in.onClose(new play.libs.F.Callback0() {
+            public void invoke() {
+                close.run();
+            }
+        });
+        push.applyOn(inIteratee);
+    }
 }
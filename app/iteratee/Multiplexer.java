@@ -0,0 +1,236 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package iteratee;
+
+import play.mvc.WebSocket;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static iteratee.F.*;
+import static iteratee.Iteratees.*;
+import static iteratee.JIteratees.*;
+
+/**
+ * Serves several named channels over a single websocket per client.
+ * <p>
+ * The client sends {@code +name} to subscribe and {@code -name} to unsubscribe.
+ * The server sends batches of {@code name:length:payload} entries, gathered within
+ * the {@link Flush} delay, and drops them or disconnects a client that doesn't
+ * keep up.
+ */
+public class Multiplexer {
+
+    public static final Overflow DEFAULT_OVERFLOW = Overflow.disconnect(256, 0L);
+
+    private final Map<String, Channel<?>> channels = new ConcurrentHashMap<String, Channel<?>>();
+    private final AtomicLong dropped = new AtomicLong(0L);
+    private final AtomicLong disconnected = new AtomicLong(0L);
+
+    public <T> Multiplexer channel(String name, HubEnumerator<T> hub, StrBuilder<T> builder) {
+        if (name.length() == 0 || name.indexOf(':') >= 0) {
+            throw new IllegalArgumentException("Invalid channel name '" + name + "'");
+        }
+        channels.put(name, new Channel<T>(hub, new Entry<T>(name, builder)));
+        return this;
+    }
+
+    /** The enumerator is broadcast, so that all the connections share it. */
+    public <T> Multiplexer channel(String name, Enumerator<T> enumerator, StrBuilder<T> builder) {
+        return channel(name, Enumerator.broadcast(enumerator), builder);
+    }
+
+    public WebSocket<String> websocket() {
+        return websocket(DEFAULT_OVERFLOW, Flush.DEFAULT);
+    }
+
+    /**
+     * @param overflow dropNewest or disconnect, for the frames waiting for the socket.
+     * @param flush    how long entries may wait for others to share their frame.
+     */
+    public WebSocket<String> websocket(Overflow overflow, Flush flush) {
+        if (overflow.strategy != Overflow.Strategy.DROP_NEWEST
+                && (overflow.strategy != Overflow.Strategy.DISCONNECT || overflow.behind != 0L)) {
+            throw new IllegalArgumentException("Unsupported overflow " + overflow.strategy);
+        }
+        final Connection connection = new Connection(overflow, flush);
+        final WebSocket<String> socket = JIteratees.websocket(String.class, String.class, connection.control, new Identity<String>(),
+                connection.frames, new Identity<String>());
+        return new WebSocket<String>() {
+            @Override
+            public void onReady(WebSocket.In<String> in, WebSocket.Out<String> out) {
+                connection.out = out;
+                socket.onReady(in, out);
+            }
+        };
+    }
+
+    /** @return how many frames were dropped, and how many clients were disconnected. */
+    public Map<String, Long> counters() {
+        Map<String, Long> counters = new LinkedHashMap<String, Long>();
+        counters.put("channels", (long) channels.size());
+        counters.put("dropped", dropped.get());
+        counters.put("disconnected", disconnected.get());
+        return counters;
+    }
+
+    private static final class Channel<T> {
+        final HubEnumerator<T> hub;
+        final Entry<T> entry;
+        Channel(HubEnumerator<T> hub, Entry<T> entry) {
+            this.hub = hub;
+            this.entry = entry;
+        }
+        Iteratee<String, Unit> subscribe(final Connection connection) {
+            Iteratee<String, Unit> iteratee = Iteratee.foreach(new UFunction<String>() {
+                @Override
+                public void invoke(String entry) {
+                    connection.append(entry);
+                }
+            });
+            hub.add(iteratee, Overflow.backpressure(), entry);
+            return iteratee;
+        }
+    }
+
+    private static final class Entry<T> implements Function<T, String> {
+        private final String name;
+        private final StrBuilder<T> builder;
+        Entry(String name, StrBuilder<T> builder) {
+            this.name = name;
+            this.builder = builder;
+        }
+        @Override
+        public String apply(T value) {
+            String payload = builder.build(value);
+            return name + ':' + payload.length() + ':' + payload;
+        }
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Entry && ((Entry) o).name.equals(name) && ((Entry) o).builder.equals(builder);
+        }
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+    }
+
+    /** One client, its subscriptions and the frame being filled for it. */
+    private final class Connection {
+        private final Overflow overflow;
+        private final Flush flush;
+        private final Map<String, Iteratee<String, Unit>> subscriptions = new ConcurrentHashMap<String, Iteratee<String, Unit>>();
+        private final StringBuilder batch = new StringBuilder();
+        private final Runnable flusher = new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+        private boolean scheduled = false;
+        private long lost = 0L;
+        private volatile boolean closed = false;
+        volatile WebSocket.Out<String> out;
+        final PushEnumerator<String> frames;
+        final Iteratee<String, Unit> control = Iteratee.foreach(new UFunction<String>() {
+            @Override
+            public void invoke(String command) {
+                if (command.startsWith("+")) {
+                    subscribe(command.substring(1));
+                } else if (command.startsWith("-")) {
+                    unsubscribe(command.substring(1));
+                }
+            }
+        });
+        Connection(Overflow overflow, Flush flush) {
+            this.overflow = overflow;
+            this.flush = flush;
+            this.frames = Enumerator.unicast(String.class, overflow.size);
+            control.getAsyncResult().onRedeem(new Action<Promise<Unit>>() {
+                @Override
+                public void apply(Promise<Unit> unitPromise) {
+                    close();
+                }
+            });
+        }
+        private void subscribe(String name) {
+            Channel<?> channel = channels.get(name);
+            if (channel != null && !closed && !subscriptions.containsKey(name)) {
+                subscriptions.put(name, channel.subscribe(this));
+            }
+        }
+        private void unsubscribe(String name) {
+            Iteratee<String, Unit> subscription = subscriptions.remove(name);
+            if (subscription != null) {
+                subscription.cancel();
+            }
+        }
+        private void close() {
+            closed = true;
+            for (String name : subscriptions.keySet()) {
+                unsubscribe(name);
+            }
+            synchronized (this) {
+                batch.setLength(0);
+            }
+        }
+        synchronized void append(String entry) {
+            if (closed) {
+                return;
+            }
+            if (flush.bytes <= 0) {
+                offer(entry);
+                return;
+            }
+            batch.append(entry);
+            if (batch.length() >= flush.bytes) {
+                send();
+            } else if (!scheduled) {
+                scheduled = true;
+                flush.schedule(flusher);
+            }
+        }
+        synchronized void flush() {
+            scheduled = false;
+            send();
+        }
+        private void send() {
+            if (batch.length() > 0 && !closed) {
+                offer(batch.toString());
+                batch.setLength(0);
+            }
+        }
+        private void offer(String frame) {
+            if (frames.offer(frame)) {
+                return;
+            }
+            dropped.incrementAndGet();
+            if (overflow.strategy == Overflow.Strategy.DISCONNECT && ++lost > overflow.dropped) {
+                disconnected.incrementAndGet();
+                closed = true;
+                WebSocket.Out<String> socket = out;
+                if (socket != null) {
+                    socket.close();
+                }
+                control.cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package iteratee;
+
+import iteratee.JIteratees.Admission;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AdmissionTest {
+
+    private final Admission admission = Admission.instance();
+
+    @After
+    public void unlimit() {
+        admission.limit(Long.MAX_VALUE).budget(Long.MAX_VALUE).unclaimed(30L, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void rejectsPastTheLimitUntilAConnectionCloses() {
+        long admitted = counter("admitted");
+        long rejected = counter("rejected");
+        admission.limit(counter("connections") + 2L);
+        Admission.Reservation first = admission.admit();
+        Admission.Reservation second = admission.admit();
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(admission.admit());
+        first.release();
+        Admission.Reservation third = admission.admit();
+        assertNotNull(third);
+        assertEquals(admitted + 3L, counter("admitted"));
+        assertEquals(rejected + 1L, counter("rejected"));
+        second.release();
+        third.release();
+    }
+
+    @Test
+    public void releasesOnce() {
+        long connections = counter("connections");
+        Admission.Reservation reservation = admission.admit();
+        assertEquals(connections + 1L, counter("connections"));
+        reservation.release();
+        reservation.release();
+        assertEquals(connections, counter("connections"));
+    }
+
+    @Test
+    public void neverAdmitsMoreThanTheLimitConcurrently() throws Exception {
+        long connections = counter("connections");
+        admission.limit(connections + 50L);
+        final List<Admission.Reservation> reservations = Collections.synchronizedList(new ArrayList<Admission.Reservation>());
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 0; i < 1000; i++) {
+            futures.add(executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    Admission.Reservation reservation = admission.admit();
+                    if (reservation != null) {
+                        reservations.add(reservation);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assertEquals(50, reservations.size());
+        assertEquals(connections + 50L, counter("connections"));
+        for (Admission.Reservation reservation : reservations) {
+            reservation.release();
+        }
+        assertEquals(connections, counter("connections"));
+    }
+
+    @Test
+    public void takesBackTheSlotsOfResponsesNeverRendered() {
+        admission.limit(counter("connections") + 1L).unclaimed(0L, TimeUnit.SECONDS);
+        Admission.Reservation never = admission.admit();
+        Admission.Reservation next = admission.admit();
+        assertNotNull(next);
+        assertFalse(never.claim(null));
+        assertTrue(next.claim(null));
+        assertNull(admission.admit());
+        next.release();
+    }
+
+    @Test
+    public void degradesPastTheByteBudget() {
+        long degraded = counter("degraded");
+        admission.budget(counter("reserved") + 1024L);
+        Admission.Reservation buffered = admission.admit(1024);
+        Admission.Reservation unbuffered = admission.admit(1024);
+        assertFalse(buffered.degraded);
+        assertTrue(unbuffered.degraded);
+        assertEquals(0, unbuffered.flush(JIteratees.Flush.DEFAULT).bytes);
+        assertEquals(degraded + 1L, counter("degraded"));
+        buffered.release();
+        Admission.Reservation next = admission.admit(1024);
+        assertFalse(next.degraded);
+        next.release();
+        unbuffered.release();
+    }
+
+    private long counter(String name) {
+        return admission.counters().get(name);
+    }
+}
@@ -0,0 +1,131 @@
+package iteratee;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+
+import static iteratee.F.*;
+import static iteratee.Iteratees.*;
+import static org.junit.Assert.*;
+
+public class ClusterTest {
+
+    private InetSocketAddress first;
+    private InetSocketAddress second;
+    private Cluster<String> left;
+    private Cluster<String> right;
+    private final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+
+    @Before
+    public void link() throws Exception {
+        first = new InetSocketAddress("127.0.0.1", freePort());
+        second = new InetSocketAddress("127.0.0.1", freePort());
+        left = new Cluster<String>(first, Collections.singletonList(second), Cluster.STRINGS);
+        right = new Cluster<String>(second, Collections.singletonList(first), Cluster.STRINGS);
+        PushEnumerator<String> target = Enumerator.unicast(String.class, 4096);
+        target.applyOn(Iteratee.foreach(new UFunction<String>() {
+            @Override
+            public void invoke(String elem) {
+                received.offer(elem);
+            }
+        }));
+        right.deliverTo(target);
+        left.start();
+        right.start();
+    }
+
+    @After
+    public void unlink() {
+        left.stop();
+        right.stop();
+    }
+
+    @Test
+    public void elementsReachThePeerInOrder() throws Exception {
+        List<String> sent = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            sent.add("element " + i);
+            left.publish("element " + i);
+        }
+        assertEquals(sent, take(100));
+        assertEquals(100L, right.counters().get("received").longValue());
+    }
+
+    @Test
+    public void aMalformedFrameOnlyClosesItsConnection() throws Exception {
+        left.publish("before");
+        assertEquals(Collections.singletonList("before"), take(1));
+        assertClosedAfter(frame(1, -5));
+        assertClosedAfter(frame(1, Integer.MAX_VALUE));
+        assertClosedAfter(frame(1, 10 * 1024 * 1024));
+        assertClosedAfter(frame(-1, 0));
+        left.publish("after");
+        assertEquals(Collections.singletonList("after"), take(1));
+    }
+
+    /** A deflated batch of {@code count} elements, the first one claiming {@code length} bytes. */
+    private static byte[] frame(int count, int length) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream encoded = new DataOutputStream(new DeflaterOutputStream(buffer));
+        encoded.writeInt(count);
+        encoded.writeInt(length);
+        encoded.writeBytes("short");
+        encoded.close();
+        return buffer.toByteArray();
+    }
+
+    private void assertClosedAfter(byte[] frame) throws Exception {
+        Socket socket = new Socket(second.getAddress(), second.getPort());
+        try {
+            socket.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(Cluster.MAGIC);
+            out.writeInt(frame.length);
+            out.write(frame);
+            out.flush();
+            InputStream in = socket.getInputStream();
+            try {
+                assertEquals(-1, in.read());
+            } catch (SocketException e) {
+                // reset by the peer, closed as well
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    private List<String> take(int count) throws InterruptedException {
+        List<String> taken = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            String elem = received.poll(10L, TimeUnit.SECONDS);
+            assertNotNull("Timed out with " + taken, elem);
+            taken.add(elem);
+        }
+        return taken;
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
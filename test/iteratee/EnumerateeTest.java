@@ -0,0 +1,202 @@
+package iteratee;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static iteratee.F.*;
+import static iteratee.Iteratees.*;
+import static org.junit.Assert.*;
+
+public class EnumerateeTest {
+
+    private static final Function<Integer, Boolean> PARITY = new Function<Integer, Boolean>() {
+        @Override
+        public Boolean apply(Integer i) {
+            return i % 2 == 0;
+        }
+    };
+
+    @Test
+    public void conflateKeepsTheLatestElementPerKeyWhileDownstreamIsBusy() throws Exception {
+        Enumeratee<Integer, Integer> conflate = Enumeratee.conflate(PARITY);
+        PushEnumerator<Integer> source = Enumerator.unicast(Integer.class);
+        Recorder recorder = new Recorder(true);
+        Promise<Unit> done = source.through(conflate).applyOn(recorder.iteratee);
+        for (int i = 0; i < 10; i++) {
+            source.push(i);
+        }
+        Thread.sleep(200L);
+        source.stop();
+        recorder.open();
+        assertEquals(Arrays.asList(0, 9, 8), recorder.await(done));
+    }
+
+    @Test
+    public void conflateStartsCleanOnEachApplication() throws Exception {
+        Enumeratee<Integer, Integer> conflate = Enumeratee.conflate(PARITY);
+        PushEnumerator<Integer> first = Enumerator.unicast(Integer.class);
+        Recorder stalled = new Recorder(true);
+        Promise<Unit> firstDone = first.through(conflate).applyOn(stalled.iteratee);
+        first.push(0);
+        first.push(1);
+        Thread.sleep(100L);
+        PushEnumerator<Integer> second = Enumerator.unicast(Integer.class);
+        Recorder recorder = new Recorder(false);
+        Promise<Unit> secondDone = second.through(conflate).applyOn(recorder.iteratee);
+        second.push(10);
+        Thread.sleep(100L);
+        second.stop();
+        assertEquals(Collections.singletonList(10), recorder.await(secondDone));
+        first.stop();
+        stalled.open();
+        assertEquals(Arrays.asList(0, 1), stalled.await(firstDone));
+    }
+
+    @Test
+    public void sampleEmitsTheLatestElementOncePerInterval() throws Exception {
+        PushEnumerator<Integer> source = Enumerator.unicast(Integer.class);
+        Recorder recorder = new Recorder(false);
+        Promise<Unit> done = source.through(Enumeratee.<Integer>sample(100L, TimeUnit.MILLISECONDS)).applyOn(recorder.iteratee);
+        for (int i = 0; i < 100; i++) {
+            source.push(i);
+        }
+        Thread.sleep(250L);
+        for (int i = 100; i < 200; i++) {
+            source.push(i);
+        }
+        Thread.sleep(50L);
+        source.stop();
+        List<Integer> sampled = recorder.await(done);
+        assertTrue(sampled.toString(), sampled.size() <= 4);
+        assertTrue(sampled.toString(), sampled.contains(99));
+        assertEquals(199, sampled.get(sampled.size() - 1).intValue());
+    }
+
+    @Test
+    public void sampleStartsCleanOnEachApplication() throws Exception {
+        Enumeratee<Integer, Integer> sample = Enumeratee.sample(50L, TimeUnit.MILLISECONDS);
+        PushEnumerator<Integer> first = Enumerator.unicast(Integer.class);
+        Recorder firstRecorder = new Recorder(false);
+        Promise<Unit> firstDone = first.through(sample).applyOn(firstRecorder.iteratee);
+        first.push(1);
+        Thread.sleep(20L);
+        first.stop();
+        assertEquals(Collections.singletonList(1), firstRecorder.await(firstDone));
+        PushEnumerator<Integer> second = Enumerator.unicast(Integer.class);
+        Recorder secondRecorder = new Recorder(false);
+        Promise<Unit> secondDone = second.through(sample).applyOn(secondRecorder.iteratee);
+        Thread.sleep(150L);
+        second.stop();
+        assertEquals(Collections.<Integer>emptyList(), secondRecorder.await(secondDone));
+    }
+
+    @Test
+    public void aCancelledSampleStops() throws Exception {
+        PushEnumerator<Integer> source = Enumerator.unicast(Integer.class);
+        Iteratee<Integer, Unit> iteratee = Iteratee.ignore();
+        Thread.sleep(100L);
+        long baseline = Iteratees.actors();
+        source.through(Enumeratee.<Integer>sample(10L, TimeUnit.MILLISECONDS)).applyOn(iteratee);
+        source.push(1);
+        Thread.sleep(50L);
+        iteratee.cancel();
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (Iteratees.actors() > baseline && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertTrue(Iteratees.actors() <= baseline);
+    }
+
+    @Test
+    public void throttleHoldsElementsBackToTheRate() throws Exception {
+        PushEnumerator<Integer> source = Enumerator.unicast(Integer.class);
+        Recorder recorder = new Recorder(false);
+        long start = System.nanoTime();
+        Promise<Unit> done = source.through(Enumeratee.<Integer>throttle(10L, 100L, TimeUnit.MILLISECONDS, 1L)).applyOn(recorder.iteratee);
+        for (int i = 0; i < 20; i++) {
+            source.push(i);
+        }
+        while (recorder.elements.size() < 20 && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5L)) {
+            Thread.sleep(10L);
+        }
+        long elapsed = System.nanoTime() - start;
+        source.stop();
+        assertEquals(HubEnumeratorTest.range(0, 20), recorder.await(done));
+        assertTrue(elapsed + "ns", elapsed >= TimeUnit.MILLISECONDS.toNanos(150L));
+    }
+
+    @Test
+    public void throttleBytesCountsTheBytesOfEachChunk() throws Exception {
+        PushEnumerator<byte[]> source = Enumerator.unicast(byte[].class);
+        final List<byte[]> chunks = Collections.synchronizedList(new ArrayList<byte[]>());
+        long start = System.nanoTime();
+        source.through(Enumeratee.throttleBytes(1000L, 100L, TimeUnit.MILLISECONDS, 1000L)).applyOn(Iteratee.foreach(new UFunction<byte[]>() {
+            @Override
+            public void invoke(byte[] chunk) {
+                chunks.add(chunk);
+            }
+        }));
+        for (int i = 0; i < 10; i++) {
+            source.push(new byte[500]);
+        }
+        while (chunks.size() < 10 && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5L)) {
+            Thread.sleep(10L);
+        }
+        assertEquals(10, chunks.size());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(350L));
+        source.stop();
+    }
+
+    @Test
+    public void rateLimitDropsWhatExceedsTheBurstAndStartsCleanOnEachApplication() throws Exception {
+        Enumeratee<Integer, Integer> limit = Enumeratee.rateLimit(1L, 10L, TimeUnit.SECONDS, 5L);
+        for (int run = 0; run < 2; run++) {
+            PushEnumerator<Integer> source = Enumerator.unicast(Integer.class);
+            Recorder recorder = new Recorder(false);
+            Promise<Unit> done = source.through(limit).applyOn(recorder.iteratee);
+            for (int i = 0; i < 20; i++) {
+                source.push(i);
+            }
+            Thread.sleep(100L);
+            source.stop();
+            assertEquals(HubEnumeratorTest.range(0, 5), recorder.await(done));
+        }
+    }
+
+    /**
+     * Keeps what it reads, blocking on its first element until it is opened if
+     * it starts closed.
+     */
+    static class Recorder {
+        final List<Integer> elements = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch opened;
+        final Iteratee<Integer, Unit> iteratee = Iteratee.foreach(new UFunction<Integer>() {
+            @Override
+            public void invoke(Integer elem) {
+                elements.add(elem);
+                try {
+                    opened.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        Recorder(boolean closed) {
+            opened = new CountDownLatch(closed ? 1 : 0);
+        }
+        void open() {
+            opened.countDown();
+        }
+        List<Integer> await(Promise<Unit> done) throws Exception {
+            done.await(5L, TimeUnit.SECONDS);
+            assertTrue("Not done with " + elements, done.isDone());
+            return new ArrayList<Integer>(elements);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package iteratee;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static iteratee.F.*;
+import static iteratee.Iteratees.*;
+import static org.junit.Assert.*;
+
+public class HubEnumeratorTest {
+
+    @Test
+    public void everySubscriberReadsEveryElementInOrder() throws Exception {
+        PushEnumerator<Integer> source = Enumerator.unicast(Integer.class);
+        HubEnumerator<Integer> hub = Enumerator.broadcast(source, false);
+        Collector first = new Collector(100);
+        Collector second = new Collector(100);
+        hub.add(first.iteratee);
+        hub.add(second.iteratee);
+        hub.broadcast();
+        for (int i = 0; i < 100; i++) {
+            source.push(i);
+        }
+        assertEquals(range(0, 100), first.await());
+        assertEquals(range(0, 100), second.await());
+        hub.stop();
+    }
+
+    @Test
+    public void aLateSubscriberStartsFromTheNextElement() throws Exception {
+        PushEnumerator<Integer> source = Enumerator.unicast(Integer.class);
+        HubEnumerator<Integer> hub = Enumerator.broadcast(source);
+        Collector early = new Collector(20);
+        hub.add(early.iteratee);
+        for (int i = 0; i < 10; i++) {
+            source.push(i);
+        }
+        eventually(hub, "published", 10L);
+        Collector late = new Collector(10);
+        hub.add(late.iteratee);
+        Thread.sleep(50L);
+        for (int i = 10; i < 20; i++) {
+            source.push(i);
+        }
+        assertEquals(range(0, 20), early.await());
+        assertEquals(range(10, 20), late.await());
+        hub.stop();
+    }
+
+    @Test
+    public void aSlowSubscriberHoldsBackpressuringHubs() throws Exception {
+        PushEnumerator<Integer> source = Enumerator.unicast(Integer.class, 4096);
+        HubEnumerator<Integer> hub = new HubEnumerator<Integer>(source, true, 16);
+        Gate gate = new Gate();
+        hub.add(gate.iteratee, Overflow.backpressure());
+        for (int i = 0; i < 100; i++) {
+            source.offer(i);
+        }
+        Thread.sleep(200L);
+        assertTrue(hub.counters().get("published") <= 32L);
+        gate.open();
+        eventually(hub, "published", 100L);
+        hub.stop();
+    }
+
+    @Test
+    public void aStalledSubscriberDoesNotHoldBackByDefault() throws Exception {
+        PushEnumerator<Integer> source = Enumerator.unicast(Integer.class, 4096);
+        HubEnumerator<Integer> hub = new HubEnumerator<Integer>(source, true, 16);
+        Gate gate = new Gate();
+        Collector fast = new Collector(200);
+        hub.add(gate.iteratee);
+        hub.add(fast.iteratee, Overflow.backpressure());
+        for (int i = 0; i < 200; i++) {
+            source.offer(i);
+        }
+        assertEquals(range(0, 200), fast.await());
+        eventually(hub, "published", 200L);
+        gate.open();
+        hub.stop();
+    }
+
+    @Test
+    public void aSlowSubscriberDropsTheNewestElements() throws Exception {
+        assertSlowSubscriberDoesNotHoldBack(Overflow.dropNewest(4), "droppedNewest").stop();
+    }
+
+    @Test
+    public void aSlowSubscriberDropsTheOldestElements() throws Exception {
+        assertSlowSubscriberDoesNotHoldBack(Overflow.dropOldest(4), "droppedOldest").stop();
+    }
+
+    @Test
+    public void aSlowSubscriberIsDisconnected() throws Exception {
+        HubEnumerator<Integer> hub = assertSlowSubscriberDoesNotHoldBack(Overflow.disconnect(4, 0L), "disconnected");
+        assertEquals(1L, hub.counters().get("disconnected").longValue());
+        assertEquals(1L, hub.counters().get("subscribers").longValue());
+        hub.stop();
+    }
+
+    @Test
+    public void aLateSubscriberGetsTheLastElementsReplayed() throws Exception {
+        PushEnumerator<Integer> source = Enumerator.unicast(Integer.class, 4096);
+        HubEnumerator<Integer> hub = Enumerator.broadcast(source, Replay.last(10));
+        for (int i = 0; i < 100; i++) {
+            source.offer(i);
+        }
+        eventually(hub, "published", 100L);
+        Collector late = new Collector(15);
+        hub.add(late.iteratee);
+        Thread.sleep(50L);
+        for (int i = 100; i < 105; i++) {
+            source.push(i);
+        }
+        assertEquals(range(90, 105), late.await());
+        hub.stop();
+    }
+
+    @Test
+    public void aLateSubscriberGetsTheRecentElementsReplayed() throws Exception {
+        PushEnumerator<Integer> source = Enumerator.unicast(Integer.class);
+        HubEnumerator<Integer> hub = Enumerator.broadcast(source, Replay.within(300L, TimeUnit.MILLISECONDS));
+        for (int i = 0; i < 5; i++) {
+            source.push(i);
+        }
+        eventually(hub, "published", 5L);
+        Thread.sleep(600L);
+        for (int i = 5; i < 10; i++) {
+            source.push(i);
+        }
+        eventually(hub, "published", 10L);
+        Collector late = new Collector(5);
+        hub.add(late.iteratee);
+        assertEquals(range(5, 10), late.await());
+        hub.stop();
+    }
+
+    private static HubEnumerator<Integer> assertSlowSubscriberDoesNotHoldBack(Overflow overflow, String counter) throws Exception {
+        PushEnumerator<Integer> source = Enumerator.unicast(Integer.class, 4096);
+        HubEnumerator<Integer> hub = new HubEnumerator<Integer>(source, true, 16);
+        Gate gate = new Gate();
+        Collector fast = new Collector(200);
+        hub.add(gate.iteratee, overflow);
+        hub.add(fast.iteratee, Overflow.backpressure());
+        for (int i = 0; i < 200; i++) {
+            source.offer(i);
+        }
+        assertEquals(range(0, 200), fast.await());
+        eventually(hub, "published", 200L);
+        // what a subscriber missed is counted once it reads again
+        gate.open();
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (hub.counters().get(counter) == 0L && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertTrue(hub.counters().get(counter) > 0L);
+        return hub;
+    }
+
+    static List<Integer> range(int from, int to) {
+        List<Integer> range = new ArrayList<Integer>();
+        for (int i = from; i < to; i++) {
+            range.add(i);
+        }
+        return range;
+    }
+
+    static void eventually(HubEnumerator<?> hub, String counter, long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (hub.counters().get(counter) < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertEquals(expected, hub.counters().get(counter).longValue());
+    }
+
+    /**
+     * Keeps what it reads, until it got {@code expected} elements.
+     */
+    static class Collector {
+        final List<Integer> elements = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch latch;
+        final Iteratee<Integer, Unit> iteratee;
+        Collector(int expected) {
+            latch = new CountDownLatch(expected);
+            iteratee = Iteratee.foreach(new UFunction<Integer>() {
+                @Override
+                public void invoke(Integer elem) {
+                    elements.add(elem);
+                    latch.countDown();
+                }
+            });
+        }
+        List<Integer> await() throws InterruptedException {
+            assertTrue("Timed out with " + elements, latch.await(5L, TimeUnit.SECONDS));
+            Thread.sleep(50L);
+            return new ArrayList<Integer>(elements);
+        }
+    }
+
+    /**
+     * Blocks on its first element until it is opened.
+     */
+    static class Gate {
+        final CountDownLatch opened = new CountDownLatch(1);
+        final Iteratee<Integer, Unit> iteratee = Iteratee.foreach(new UFunction<Integer>() {
+            @Override
+            public void invoke(Integer elem) {
+                try {
+                    opened.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        void open() {
+            opened.countDown();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package iteratee;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static iteratee.F.*;
+import static iteratee.HubEnumeratorTest.Collector;
+import static iteratee.Iteratees.*;
+import static org.junit.Assert.*;
+
+public class IndexedHubEnumeratorTest {
+
+    private static final Function<Integer, String> PARITY = new Function<Integer, String>() {
+        @Override
+        public String apply(Integer i) {
+            return i % 2 == 0 ? "even" : "odd";
+        }
+    };
+
+    /** Elements from 1000 up have no value. */
+    private static final Function<Integer, Option<Double>> VALUE = new Function<Integer, Option<Double>>() {
+        @Override
+        public Option<Double> apply(Integer i) {
+            return i < 1000 ? Option.some((double) i) : Option.<Double>none();
+        }
+    };
+
+    private static final Function<Integer, Integer> IDENTITY = new Function<Integer, Integer>() {
+        @Override
+        public Integer apply(Integer i) {
+            return i;
+        }
+    };
+
+    @Test
+    public void subscribersGetTheElementsOfTheirKeysWithinTheirRanges() throws Exception {
+        PushEnumerator<Integer> source = Enumerator.unicast(Integer.class);
+        IndexedHubEnumerator<Integer, String> hub = new IndexedHubEnumerator<Integer, String>(source, PARITY, VALUE);
+        Collector evens = subscribe(hub, Criteria.keys("even"), 11);
+        Collector between = subscribe(hub, Criteria.keys("even", "odd").between(5, 10), 6);
+        Collector below = subscribe(hub, Criteria.keys("odd").between(Double.NEGATIVE_INFINITY, 4), 3);
+        Collector above = subscribe(hub, Criteria.keys("odd").between(15, Double.POSITIVE_INFINITY), 3);
+        Collector anywhere = subscribe(hub, Criteria.keys("even").between(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY), 11);
+        Collector none = subscribe(hub, Criteria.keys("none"), 0);
+        for (int i = 0; i < 20; i++) {
+            source.push(i);
+        }
+        source.push(1000);
+        source.push(1001);
+        assertEquals(Arrays.asList(0, 2, 4, 6, 8, 10, 12, 14, 16, 18, 1000), evens.await());
+        assertEquals(Arrays.asList(6, 7, 8, 9, 1000, 1001), between.await());
+        assertEquals(Arrays.asList(1, 3, 1001), below.await());
+        assertEquals(Arrays.asList(17, 19, 1001), above.await());
+        assertEquals(evens.await(), anywhere.await());
+        assertEquals(Collections.<Integer>emptyList(), none.await());
+        source.stop();
+    }
+
+    @Test
+    public void aSubscriptionOnlyGetsWhatIsPublishedOnceItIsApplied() throws Exception {
+        PushEnumerator<Integer> source = Enumerator.unicast(Integer.class);
+        IndexedHubEnumerator<Integer, String> hub = new IndexedHubEnumerator<Integer, String>(source, PARITY, VALUE);
+        Enumerator<Integer> late = hub.subscribe(Criteria.keys("even"), IDENTITY);
+        Collector early = subscribe(hub, Criteria.keys("even"), 2);
+        source.push(0);
+        source.push(2);
+        early.await();
+        Collector collector = new Collector(1);
+        late.applyOn(collector.iteratee);
+        source.push(4);
+        assertEquals(Collections.singletonList(4), collector.await());
+        source.stop();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void anInvertedRangeIsRefused() {
+        Criteria.keys("even").between(10, 5);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void anEmptyRangeIsRefused() {
+        Criteria.keys("even").between(5, 5);
+    }
+
+    @Test
+    public void theTreeStabsTheSameRangesAsAScan() {
+        Random random = new Random(42L);
+        Map<Range, Integer> ranges = new HashMap<Range, Integer>();
+        for (int i = 0; i < 500; i++) {
+            double low = random.nextInt(10) == 0 ? Double.NEGATIVE_INFINITY : random.nextInt(1000);
+            double high = random.nextInt(10) == 0 ? Double.POSITIVE_INFINITY : random.nextInt(1000);
+            ranges.put(new Range(low, high), i);
+        }
+        ranges.put(new Range(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY), -1);
+        IntervalTree<Integer> tree = new IntervalTree<Integer>(ranges);
+        for (int i = 0; i < 2000; i++) {
+            double x = random.nextInt(4) == 0 ? random.nextInt(1000) : random.nextDouble() * 1000;
+            List<Integer> stabbed = new ArrayList<Integer>();
+            tree.stab(x, stabbed);
+            List<Integer> scanned = new ArrayList<Integer>();
+            for (Map.Entry<Range, Integer> entry : ranges.entrySet()) {
+                if (entry.getKey().low < x && x < entry.getKey().high) {
+                    scanned.add(entry.getValue());
+                }
+            }
+            Collections.sort(stabbed);
+            Collections.sort(scanned);
+            assertEquals("At " + x, scanned, stabbed);
+        }
+    }
+
+    private static Collector subscribe(IndexedHubEnumerator<Integer, String> hub, Criteria<String> criteria, int expected) {
+        Collector collector = new Collector(expected);
+        hub.subscribe(criteria, IDENTITY).applyOn(collector.iteratee);
+        return collector;
+    }
+}
@@ -0,0 +1,107 @@
+package iteratee;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static iteratee.Iteratees.*;
+import static iteratee.JIteratees.*;
+import static org.junit.Assert.*;
+
+public class JIterateesTest {
+
+    private static final StrBuilder<String> SAME = new StrBuilder<String>() {
+        @Override
+        public String build(String value) {
+            return value;
+        }
+    };
+
+    @Test
+    public void eventsWriteOneFieldPerLineOfTheirValue() throws Exception {
+        assertEquals("data: hello\n\n", text(new EventWriter().field("data", "hello").end()));
+        assertEquals("data: a\ndata: b\ndata: c\ndata: d\n\n", text(new EventWriter().field("data", "a\nb\r\nc\rd").end()));
+        assertEquals("data: a\ndata: \n\n", text(new EventWriter().field("data", "a\n").end()));
+        assertEquals("data: \n\n", text(new EventWriter().field("data", "").end()));
+    }
+
+    @Test
+    public void eventsAreEncodedInUtf8() throws Exception {
+        String value = "caf\u00e9 \u20ac \ud83d\ude00";
+        assertArrayEquals(("data: " + value + "\n\n").getBytes("UTF-8"), new EventWriter().field("data", value).end());
+        assertEquals("data: a?b\n\n", text(new EventWriter().field("data", "a\ud83db").end()));
+    }
+
+    @Test
+    public void hubEventsCarryTheirEpochAndSequenceAsId() throws Exception {
+        Events<String> events = Events.data(SAME).named(new StrBuilder<String>() {
+            @Override
+            public String build(String value) {
+                return value.startsWith("tick") ? "tick" : null;
+            }
+        });
+        EventSourceFrame<String> frame = new EventSourceFrame<String>(events, "e1");
+        assertEquals("id: e1-7\nevent: tick\ndata: tick 1\n\n", text(frame.apply(7L, "tick 1")));
+        assertEquals("id: e1-8\ndata: other\n\n", text(frame.apply(8L, "other")));
+        assertEquals("event: tick\ndata: tick 2\n\n", text(frame.apply(-1L, "tick 2")));
+    }
+
+    @Test
+    public void onlyIdsOfTheSameEpochResume() {
+        assertEquals(42L, sequenceOf("e1-42", "e1"));
+        assertEquals(42L, sequenceOf(" e1-42 ", "e1"));
+        assertEquals(-1L, sequenceOf("e0-42", "e1"));
+        assertEquals(-1L, sequenceOf("e1-x", "e1"));
+        assertEquals(-1L, sequenceOf("42", "e1"));
+        assertEquals(-1L, sequenceOf(null, "e1"));
+    }
+
+    @Test
+    public void retryIsSentOnceUpFront() throws Exception {
+        assertNull(Events.data(SAME).preamble());
+        assertEquals("retry: 3000\n\n", text(Events.data(SAME).retry(3L, TimeUnit.SECONDS).preamble()));
+    }
+
+    @Test
+    public void heartbeatsCanBeTurnedOff() {
+        assertNotNull(Events.data(SAME).heartbeat());
+        assertNull(Events.data(SAME).heartbeat(0L, TimeUnit.SECONDS).heartbeat());
+    }
+
+    @Test
+    public void cometEscapesWhatWouldEndTheStringOrTheScript() {
+        assertEquals("it\\'s \\\"quoted\\\" \\\\ <\\/script>", escapeJavaScript("it's \"quoted\" \\ </script>"));
+        assertEquals("a\\nb\\rc\\td", escapeJavaScript("a\nb\rc\td"));
+        assertEquals("\\u0001\\u2028\\u2029", escapeJavaScript("\u0001\u2028\u2029"));
+        assertEquals("caf\u00e9", escapeJavaScript("caf\u00e9"));
+    }
+
+    @Test
+    public void cometFramesCallTheCallbackWithTheEscapedMessage() throws Exception {
+        CometFrame<String> frame = new CometFrame<String>("parent.cb", SAME);
+        assertEquals("<script type=\"text/javascript\">parent.cb('<\\/script>\\n');</script>", text(frame.apply("</script>\n")));
+    }
+
+    @Test
+    public void inboundBuffersAreBoundedByTheirOverflow() {
+        assertEquals(16, inboundCapacity(Overflow.dropNewest(16)));
+        assertEquals(16, inboundCapacity(Overflow.disconnect(16, 0L)));
+    }
+
+    @Test
+    public void inboundOverflowsPlayCannotHonourAreRefused() {
+        for (Overflow inbound : Arrays.asList(Overflow.backpressure(), Overflow.dropOldest(16), Overflow.conflate(), Overflow.disconnect(1L, TimeUnit.SECONDS))) {
+            try {
+                inboundCapacity(inbound);
+                fail("Accepted " + inbound.strategy);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    static String text(byte[] bytes) throws Exception {
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -0,0 +1,349 @@
+package iteratee;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static iteratee.F.*;
+import static iteratee.HubEnumeratorTest.range;
+import static iteratee.Iteratees.*;
+import static org.junit.Assert.*;
+
+public class JunctionTest {
+
+    private static final Comparator<Integer> NATURAL = new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+            return a.compareTo(b);
+        }
+    };
+
+    private static final Function<Tuple<Integer, Integer>, Integer> SUM = new Function<Tuple<Integer, Integer>, Integer>() {
+        @Override
+        public Integer apply(Tuple<Integer, Integer> pair) {
+            return pair._1 + pair._2;
+        }
+    };
+
+    private static final Function<Integer, Integer> IDENTITY = new Function<Integer, Integer>() {
+        @Override
+        public Integer apply(Integer i) {
+            return i;
+        }
+    };
+
+    private static final Function<String, Integer> PARSE = new Function<String, Integer>() {
+        @Override
+        public Integer apply(String s) {
+            return Integer.valueOf(s);
+        }
+    };
+
+    @Test
+    public void mergeDeliversEverySourceInItsOwnOrderThenEnds() throws Exception {
+        List<Integer> merged = collect(Enumerator.merge(Merge.roundRobin(), Enumerator.of(evens(0, 100)), Enumerator.of(odds(0, 100))));
+        assertEquals(100, merged.size());
+        assertEquals(evens(0, 100), only(merged, 0));
+        assertEquals(odds(0, 100), only(merged, 1));
+    }
+
+    @Test
+    public void priorityDrainsTheFirstReadySource() throws Exception {
+        PushEnumerator<Integer> first = Enumerator.unicast(Integer.class);
+        PushEnumerator<Integer> second = Enumerator.unicast(Integer.class);
+        for (int i = 0; i < 4; i++) {
+            first.push(i);
+            second.push(10 + i);
+        }
+        Thread.sleep(100L);
+        Recorder recorder = new Recorder();
+        Enumerator.merge(Merge.priority(), first, second).applyOn(recorder.iteratee);
+        List<Integer> merged = recorder.await(8);
+        assertEquals(range(0, 4), merged.subList(0, 4));
+        first.stop();
+        second.stop();
+    }
+
+    @Test
+    public void mergeAsksAgainASourceThatHadNothingReady() throws Exception {
+        List<Integer> merged = collect(Enumerator.merge(Merge.roundRobin(), new Stuttering(0, 50), new Stuttering(50, 100)));
+        assertEquals(range(0, 50), only(merged, range(0, 50)));
+        assertEquals(range(50, 100), only(merged, range(50, 100)));
+    }
+
+    @Test
+    public void mergeEndsOnceEverySourceEnded() throws Exception {
+        PushEnumerator<Integer> first = Enumerator.unicast(Integer.class);
+        PushEnumerator<Integer> second = Enumerator.unicast(Integer.class);
+        Recorder recorder = new Recorder();
+        Promise<Unit> done = Enumerator.merge(Merge.roundRobin(), first, second).applyOn(recorder.iteratee);
+        first.push(1);
+        Thread.sleep(50L);
+        first.stop();
+        second.push(2);
+        Thread.sleep(50L);
+        assertFalse(done.isDone());
+        second.stop();
+        done.await(5L, TimeUnit.SECONDS);
+        assertTrue(done.isDone());
+        List<Integer> merged = new ArrayList<Integer>(recorder.elements);
+        Collections.sort(merged);
+        assertEquals(range(1, 3), merged);
+    }
+
+    @Test
+    public void mergeSortedKeepsTheWholeStreamSorted() throws Exception {
+        List<Integer> merged = collect(Enumerator.mergeSorted(NATURAL, Enumerator.of(1, 4, 7, 10), Enumerator.of(2, 3, 8), Enumerator.of(5, 6, 9)));
+        assertEquals(range(1, 11), merged);
+    }
+
+    @Test
+    public void mergeSortedGivesTiesToTheFirstSource() throws Exception {
+        Comparator<String> digits = new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return a.charAt(1) - b.charAt(1);
+            }
+        };
+        List<String> merged = collect(Enumerator.mergeSorted(digits, Enumerator.of("b1", "b2"), Enumerator.of("a1", "a2")));
+        assertEquals(Arrays.asList("b1", "a1", "b2", "a2"), merged);
+    }
+
+    @Test
+    public void mergeSortedWaitsForEverySourceStillRunning() throws Exception {
+        PushEnumerator<Integer> first = Enumerator.unicast(Integer.class);
+        PushEnumerator<Integer> second = Enumerator.unicast(Integer.class);
+        Recorder recorder = new Recorder();
+        Promise<Unit> done = Enumerator.mergeSorted(NATURAL, first, second).applyOn(recorder.iteratee);
+        first.push(5);
+        Thread.sleep(100L);
+        assertTrue(recorder.elements.isEmpty());
+        second.push(3);
+        assertEquals(Collections.singletonList(3), recorder.await(1));
+        Thread.sleep(50L);
+        second.stop();
+        assertEquals(Arrays.asList(3, 5), recorder.await(2));
+        first.stop();
+        done.await(5L, TimeUnit.SECONDS);
+        assertTrue(done.isDone());
+    }
+
+    @Test
+    public void zipPairsInOrderAndEndsWithTheShorterSource() throws Exception {
+        List<Tuple<Integer, String>> zipped = collect(Enumerator.zip(Enumerator.of(1, 2, 3), Enumerator.of("a", "b")));
+        assertEquals(Arrays.asList("1a", "2b"), pairs(zipped));
+    }
+
+    @Test
+    public void synchronousZipKeepsTheElementOfTheSideAhead() {
+        Enumerator<Tuple<Integer, Integer>> zip = Enumerator.zip(Enumerator.of(1, 2, 3), new Stuttering(10, 13));
+        List<Tuple<Integer, Integer>> zipped = new ArrayList<Tuple<Integer, Integer>>();
+        for (int i = 0; i < 100 && zip.hasNext(); i++) {
+            for (Tuple<Integer, Integer> pair : zip.next()) {
+                zipped.add(pair);
+            }
+        }
+        assertEquals(Arrays.asList("110", "211", "312"), pairs(zipped));
+    }
+
+    @Test
+    public void combineLatestEmitsOnceBothSidesHaveAValueThenOnEachElement() throws Exception {
+        PushEnumerator<Integer> first = Enumerator.unicast(Integer.class);
+        PushEnumerator<Integer> second = Enumerator.unicast(Integer.class);
+        Recorder recorder = new Recorder();
+        Promise<Unit> done = Enumerator.combineLatest(first, second, SUM).applyOn(recorder.iteratee);
+        first.push(1);
+        Thread.sleep(100L);
+        assertTrue(recorder.elements.isEmpty());
+        second.push(10);
+        assertEquals(Collections.singletonList(11), recorder.await(1));
+        first.push(2);
+        assertEquals(Arrays.asList(11, 12), recorder.await(2));
+        second.push(20);
+        assertEquals(Arrays.asList(11, 12, 22), recorder.await(3));
+        Thread.sleep(50L);
+        first.stop();
+        second.stop();
+        done.await(5L, TimeUnit.SECONDS);
+        assertTrue(done.isDone());
+    }
+
+    @Test
+    public void synchronousCombineLatestTakesInEveryElement() {
+        Enumerator<Integer> combined = Enumerator.combineLatest(Enumerator.of(1, 2, 3), new Stuttering(10, 13), SUM);
+        List<Integer> sums = new ArrayList<Integer>();
+        for (int i = 0; i < 100 && combined.hasNext(); i++) {
+            for (Integer sum : combined.next()) {
+                sums.add(sum);
+            }
+        }
+        assertEquals(Arrays.asList(11, 12, 13, 14, 15), sums);
+    }
+
+    @Test
+    public void joinPairsTheElementsSharingAKey() throws Exception {
+        List<Tuple<Integer, String>> joined = collect(Enumerator.join(Enumerator.of(1, 2, 3, 5), Enumerator.of("3", "1", "4", "1"), IDENTITY, PARSE, Window.count(10)));
+        List<String> pairs = pairs(joined);
+        Collections.sort(pairs);
+        assertEquals(Arrays.asList("11", "11", "33"), pairs);
+    }
+
+    @Test
+    public void joinSkipsNullKeys() throws Exception {
+        Function<Integer, Integer> odd = new Function<Integer, Integer>() {
+            @Override
+            public Integer apply(Integer i) {
+                return i % 2 == 1 ? i : null;
+            }
+        };
+        List<Tuple<Integer, Integer>> joined = collect(Enumerator.join(Enumerator.of(1, 2, 3), Enumerator.of(1, 2, 3), odd, odd, Window.count(10)));
+        List<String> pairs = pairs(joined);
+        Collections.sort(pairs);
+        assertEquals(Arrays.asList("11", "33"), pairs);
+    }
+
+    @Test
+    public void aCountWindowForgetsTheOldestElements() {
+        assertEquals(Collections.<String>emptyList(), pairs(joinNow(Enumerator.of(1, 2, 3), Enumerator.of(7, 8, 1), Window.count(2))));
+        assertEquals(Collections.singletonList("11"), pairs(joinNow(Enumerator.of(1, 2, 3), Enumerator.of(7, 8, 1), Window.count(3))));
+    }
+
+    @Test
+    public void aTimeWindowForgetsElementsPastItsDuration() throws Exception {
+        PushEnumerator<Integer> left = Enumerator.unicast(Integer.class);
+        PushEnumerator<Integer> right = Enumerator.unicast(Integer.class);
+        final List<String> pairs = Collections.synchronizedList(new ArrayList<String>());
+        Promise<Unit> done = Enumerator.join(left, right, IDENTITY, IDENTITY, Window.time(100L, TimeUnit.MILLISECONDS, 10)).applyOn(Iteratee.foreach(new UFunction<Tuple<Integer, Integer>>() {
+            @Override
+            public void invoke(Tuple<Integer, Integer> pair) {
+                pairs.add("" + pair._1 + pair._2);
+            }
+        }));
+        left.push(1);
+        Thread.sleep(300L);
+        right.push(1);
+        right.push(2);
+        Thread.sleep(20L);
+        left.push(2);
+        Thread.sleep(50L);
+        left.stop();
+        right.stop();
+        done.await(5L, TimeUnit.SECONDS);
+        assertTrue(done.isDone());
+        assertEquals(Collections.singletonList("22"), pairs);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void weightsMustBePositive() {
+        Merge.weighted(1, 0);
+    }
+
+    private static List<String> pairs(List<? extends Tuple<?, ?>> tuples) {
+        List<String> pairs = new ArrayList<String>();
+        for (Tuple<?, ?> tuple : tuples) {
+            pairs.add("" + tuple._1 + tuple._2);
+        }
+        return pairs;
+    }
+
+    /** Joins through the synchronous path, which takes turns starting from the left. */
+    private static List<Tuple<Integer, Integer>> joinNow(Enumerator<Integer> left, Enumerator<Integer> right, Window window) {
+        Enumerator<Tuple<Integer, Integer>> join = Enumerator.join(left, right, IDENTITY, IDENTITY, window);
+        List<Tuple<Integer, Integer>> joined = new ArrayList<Tuple<Integer, Integer>>();
+        while (join.hasNext()) {
+            for (Tuple<Integer, Integer> pair : join.next()) {
+                joined.add(pair);
+            }
+        }
+        return joined;
+    }
+
+    static <T> List<T> collect(Enumerator<T> enumerator) throws Exception {
+        final List<T> elements = Collections.synchronizedList(new ArrayList<T>());
+        Promise<Unit> done = enumerator.applyOn(Iteratee.foreach(new UFunction<T>() {
+            @Override
+            public void invoke(T elem) {
+                elements.add(elem);
+            }
+        }));
+        done.await(5L, TimeUnit.SECONDS);
+        assertTrue("Not done with " + elements, done.isDone());
+        return new ArrayList<T>(elements);
+    }
+
+    static List<Integer> evens(int from, int to) {
+        return only(range(from, to), 0);
+    }
+
+    static List<Integer> odds(int from, int to) {
+        return only(range(from, to), 1);
+    }
+
+    private static List<Integer> only(List<Integer> elements, int parity) {
+        List<Integer> only = new ArrayList<Integer>();
+        for (Integer elem : elements) {
+            if (elem % 2 == parity) {
+                only.add(elem);
+            }
+        }
+        return only;
+    }
+
+    private static List<Integer> only(List<Integer> elements, List<Integer> among) {
+        List<Integer> only = new ArrayList<Integer>();
+        for (Integer elem : elements) {
+            if (among.contains(elem)) {
+                only.add(elem);
+            }
+        }
+        return only;
+    }
+
+    /**
+     * Has nothing ready every other time it is asked, and waits to be asked again.
+     */
+    static class Stuttering extends Enumerator<Integer> {
+        private final int to;
+        private int next;
+        private boolean ready = false;
+        Stuttering(int from, int to) {
+            this.next = from;
+            this.to = to;
+        }
+        @Override
+        public boolean hasNext() {
+            return next < to;
+        }
+        @Override
+        public Option<Integer> next() {
+            ready = !ready;
+            if (!ready) {
+                return Option.none();
+            }
+            return Option.apply(next++);
+        }
+    }
+
+    static class Recorder {
+        final List<Integer> elements = Collections.synchronizedList(new ArrayList<Integer>());
+        final Iteratee<Integer, Unit> iteratee = Iteratee.foreach(new UFunction<Integer>() {
+            @Override
+            public void invoke(Integer elem) {
+                elements.add(elem);
+            }
+        });
+        List<Integer> await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000L;
+            while (elements.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10L);
+            }
+            assertEquals(count, elements.size());
+            return new ArrayList<Integer>(elements);
+        }
+    }
+}
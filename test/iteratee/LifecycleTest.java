@@ -0,0 +1,86 @@
+package iteratee;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import static iteratee.F.*;
+import static iteratee.Iteratees.*;
+import static org.junit.Assert.*;
+
+/**
+ * Subscribes and cancels many times over, and checks that nothing is left
+ * running afterwards.
+ */
+public class LifecycleTest {
+
+    private static final int CYCLES = 5000;
+
+    @Test
+    public void hubSubscribersLeaveOnCancel() throws Exception {
+        PushEnumerator<Integer> source = Enumerator.unicast(Integer.class);
+        HubEnumerator<Integer> hub = Enumerator.broadcast(source);
+        Thread.sleep(100L);
+        long baseline = Iteratees.actors();
+        for (int i = 0; i < CYCLES; i++) {
+            Iteratee<Integer, Unit> iteratee = Iteratee.ignore();
+            hub.add(iteratee);
+            source.offer(i);
+            iteratee.cancel();
+        }
+        settles(baseline);
+        assertEquals(0L, hub.counters().get("subscribers").longValue());
+        hub.stop();
+    }
+
+    @Test
+    public void generatorsStopFiringOnCancel() throws Exception {
+        Counter counter = new Counter();
+        long baseline = Iteratees.actors();
+        for (int i = 0; i < CYCLES; i++) {
+            Iteratee<Integer, Unit> iteratee = Iteratee.ignore();
+            Enumerator.generate(10L, TimeUnit.MILLISECONDS, counter).applyOn(iteratee);
+            iteratee.cancel();
+        }
+        settles(baseline);
+        Thread.sleep(100L);
+        long fired = counter.calls;
+        Thread.sleep(200L);
+        assertEquals(fired, counter.calls);
+    }
+
+    @Test
+    public void fileEnumeratorsStopOnEarlyDone() throws Exception {
+        File file = File.createTempFile("lifecycle", ".bin");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[64 * 1024]);
+        out.close();
+        long baseline = Iteratees.actors();
+        for (int i = 0; i < CYCLES / 5; i++) {
+            Promise<Option<byte[]>> head = Enumerator.fromFile(file, 1024).applyOn(Iteratee.<byte[]>head());
+            head.await(5L, TimeUnit.SECONDS);
+            assertTrue(head.isDone());
+        }
+        settles(baseline);
+    }
+
+    private static void settles(long baseline) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (Iteratees.actors() > baseline && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10L);
+        }
+        assertTrue(Iteratees.actors() + " actors running, " + baseline + " before", Iteratees.actors() <= baseline);
+    }
+
+    static class Counter implements Function<Unit, Option<Integer>> {
+        volatile long calls = 0L;
+        @Override
+        public synchronized Option<Integer> apply(Unit unit) {
+            calls++;
+            return Option.apply(1);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package iteratee;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static iteratee.Iteratees.*;
+import static iteratee.JIteratees.*;
+import static org.junit.Assert.*;
+
+public class MultiplexerTest {
+
+    private static final StrBuilder<String> SAME = new StrBuilder<String>() {
+        @Override
+        public String build(String value) {
+            return value;
+        }
+    };
+
+    @Test
+    public void channelNamesMustBeNonEmptyAndWithoutColons() {
+        Multiplexer multiplexer = new Multiplexer();
+        for (String name : Arrays.asList("", "a:b", ":")) {
+            try {
+                multiplexer.channel(name, Enumerator.of("x"), SAME);
+                fail("Accepted '" + name + "'");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        assertEquals(0L, multiplexer.counters().get("channels").longValue());
+        multiplexer.channel("a", Enumerator.of("x"), SAME).channel("b-1", Enumerator.of("y"), SAME);
+        assertEquals(2L, multiplexer.counters().get("channels").longValue());
+    }
+
+    @Test
+    public void onlyOverflowsThatBoundTheFramesAreAccepted() {
+        Multiplexer multiplexer = new Multiplexer();
+        assertNotNull(multiplexer.websocket());
+        assertNotNull(multiplexer.websocket(Overflow.dropNewest(16), Flush.DEFAULT));
+        assertNotNull(multiplexer.websocket(Overflow.disconnect(16, 4L), Flush.DEFAULT));
+        for (Overflow overflow : Arrays.asList(Overflow.backpressure(), Overflow.dropOldest(16), Overflow.conflate(), Overflow.disconnect(1L, TimeUnit.SECONDS))) {
+            try {
+                multiplexer.websocket(overflow, Flush.DEFAULT);
+                fail("Accepted " + overflow.strategy);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
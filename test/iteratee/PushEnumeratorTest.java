@@ -0,0 +1,54 @@
+package iteratee;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static iteratee.F.*;
+import static iteratee.HubEnumeratorTest.Collector;
+import static iteratee.HubEnumeratorTest.range;
+import static iteratee.Iteratees.*;
+import static org.junit.Assert.*;
+
+public class PushEnumeratorTest {
+
+    @Test
+    public void pushWaitsOnceTheBufferIsFullAndRefusesPastAsManyWaiting() throws Exception {
+        PushEnumerator<Integer> push = Enumerator.unicast(Integer.class, 4);
+        List<Promise<Unit>> pushed = new ArrayList<Promise<Unit>>();
+        for (int i = 0; i < 8; i++) {
+            pushed.add(push.push(i));
+        }
+        assertTrue(pushed.get(3).isDone());
+        assertFalse(pushed.get(4).isDone());
+        try {
+            push.push(8);
+            fail("Pushed past the waiting elements");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(1L, push.dropped());
+        Collector collector = new Collector(8);
+        push.applyOn(collector.iteratee);
+        assertEquals(range(0, 8), collector.await());
+        for (Promise<Unit> promise : pushed) {
+            assertTrue(promise.isDone());
+        }
+        push.stop();
+    }
+
+    @Test
+    public void feedFollowsItsReaderWithoutLosingElements() throws Exception {
+        PushEnumerator<Integer> source = Enumerator.unicast(Integer.class, 8192);
+        for (int i = 0; i < 5000; i++) {
+            assertTrue(source.offer(i));
+        }
+        Enumerator<Integer> fed = Enumerator.feed(Integer.class, source);
+        Thread.sleep(200L);
+        Collector collector = new Collector(5000);
+        fed.applyOn(collector.iteratee);
+        assertEquals(range(0, 5000), collector.await());
+        source.stop();
+    }
+}
@@ -0,0 +1,78 @@
+package iteratee;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static iteratee.F.*;
+import static iteratee.HubEnumeratorTest.Collector;
+import static iteratee.Iteratees.*;
+import static org.junit.Assert.*;
+
+public class TimerWheelTest {
+
+    @Test
+    public void aGeneratorFiresEveryPeriod() throws Exception {
+        Counter counter = new Counter(0L);
+        PushEnumerator<Integer> generator = Enumerator.generate(20L, TimeUnit.MILLISECONDS, counter);
+        Collector collector = new Collector(10);
+        long start = System.nanoTime();
+        generator.applyOn(collector.iteratee);
+        assertEquals(HubEnumeratorTest.range(0, 10), collector.await().subList(0, 10));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(180L));
+        generator.stop();
+    }
+
+    @Test
+    public void aStoppedGeneratorNoLongerFires() throws Exception {
+        Counter counter = new Counter(0L);
+        PushEnumerator<Integer> generator = Enumerator.generate(10L, TimeUnit.MILLISECONDS, counter);
+        Collector collector = new Collector(3);
+        generator.applyOn(collector.iteratee);
+        collector.await();
+        generator.stop();
+        Thread.sleep(50L);
+        int fired = counter.calls.get();
+        Thread.sleep(200L);
+        assertEquals(fired, counter.calls.get());
+    }
+
+    @Test
+    public void aSlowCallbackNeverOverlapsItself() throws Exception {
+        Counter counter = new Counter(25L);
+        PushEnumerator<Integer> generator = Enumerator.generate(10L, TimeUnit.MILLISECONDS, counter);
+        Collector collector = new Collector(10);
+        generator.applyOn(collector.iteratee);
+        collector.await();
+        generator.stop();
+        assertFalse(counter.overlapped.get());
+    }
+
+    /**
+     * Counts its calls, taking {@code delay} milliseconds for each.
+     */
+    static class Counter implements Function<Unit, Option<Integer>> {
+        final AtomicInteger calls = new AtomicInteger(0);
+        final AtomicBoolean running = new AtomicBoolean(false);
+        final AtomicBoolean overlapped = new AtomicBoolean(false);
+        final long delay;
+        Counter(long delay) {
+            this.delay = delay;
+        }
+        @Override
+        public Option<Integer> apply(Unit unit) {
+            if (!running.compareAndSet(false, true)) {
+                overlapped.set(true);
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.set(false);
+            return Option.apply(calls.getAndIncrement());
+        }
+    }
+}